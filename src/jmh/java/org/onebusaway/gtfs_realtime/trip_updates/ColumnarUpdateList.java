@@ -0,0 +1,455 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+import org.onebusway.gtfs_realtime.exporter.GtfsRealtimeLibrary;
+
+/**
+ * An {@link UpdateStore} that keeps vehicle state in primitive parallel
+ * arrays rather than in one Update object per vehicle. Each vehicle gets a
+ * slot; trip and stop IDs are interned to int codes, and departure times,
+ * delays and stop sequences are stored in int and long arrays indexed by
+ * slot. Earlier stops of the current trip sit in a second set of arrays with
+ * maxStopsPerTrip - 1 entries per slot.
+ *
+ * Incoming updates are copied into the arrays and dropped, so replacing a
+ * vehicle's update allocates nothing (unless an {@link UpdateIndex} is set)
+ * and nothing is left behind for clearOld(), which scans the time array
+ * instead of keeping a heap. An Update is only rebuilt, from interned
+ * strings, the first time a changed vehicle is published. Interned IDs are
+ * never released; trip and stop IDs come from the GTFS schedule, so the pool
+ * stays bounded.
+ *
+ * The published Updates are kept per slot so that an unchanged vehicle keeps
+ * the same Update, and its encoded FeedEntity, from one publish to the next,
+ * as {@link UpdateStore#getUpdatesById()} requires. StoreFootprint measured
+ * 200,000 vehicles at about 298 bytes each here against 338 in UpdateList
+ * before publishing, but 776 against 761 once published. Dropping the cache
+ * does not help: the snapshot, the differential history and the encoded
+ * feed keep an Update and a FeedEntity per vehicle whichever store built
+ * them, so the arrays can only add to that. The store is therefore kept here
+ * as a benchmark baseline and is not offered by the provider.
+ *
+ * @author jlynn
+ */
+public class ColumnarUpdateList implements UpdateStore {
+
+  /**
+   * Code of a null trip or stop ID.
+   */
+  private static final int NONE = -1;
+
+  /**
+   * Interned trip and stop IDs: code i stands for strings.get(i).
+   */
+  private final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+  private final ArrayList<String> strings = new ArrayList<String>();
+
+  /**
+   * Slot of each vehicle seen through an update or bus list discovery.
+   */
+  private final HashMap<String, Integer> slots = new HashMap<String, Integer>();
+
+  /**
+   * Slots below size are either in use (deviceIds[slot] != null) or on the
+   * free list.
+   */
+  private int size = 0;
+  private int[] free = new int[16];
+  private int freeCount = 0;
+
+  private String[] deviceIds = new String[16];
+  private long[] lastSeen = new long[16];
+
+  /**
+   * Whether each slot holds an update; a slot of a discovered bus may not.
+   */
+  private boolean[] present = new boolean[16];
+
+  /**
+   * Latest departure of each slot, valid where present.
+   */
+  private int[] trips = new int[16];
+  private int[] stops = new int[16];
+  private int[] sequences = new int[16];
+  private long[] times = new long[16];
+  private long[] delays = new long[16];
+
+  /**
+   * Update last built for each slot, or null if the slot changed since.
+   */
+  private Update[] published = new Update[16];
+
+  /**
+   * Map last returned by getUpdatesById, or null if an update was added or
+   * removed since.
+   */
+  private Map<String, Update> publishedById;
+
+  /**
+   * Earlier stops of each slot's trip, oldest first: entries
+   * slot * history to slot * history + historyCounts[slot] - 1.
+   */
+  private int history = 0;
+  private int[] historyCounts = new int[16];
+  private int[] historyStops = new int[0];
+  private int[] historySequences = new int[0];
+  private long[] historyTimes = new long[0];
+  private long[] historyDelays = new long[0];
+
+  private int count = 0;
+  private long maxStamp = 0L;
+  private UpdateIndex index;
+  private volatile List<String> busIDs = Collections.emptyList();
+
+  public boolean addUpdate(Update newUpdate) {
+    long newTime = newUpdate.getDepTime();
+    int slot = slotFor(newUpdate.getId());
+
+    if (present[slot] && times[slot] >= newTime) {
+      // Old vehicle + old timestamp:
+      return false;
+    }
+
+    if (index != null && present[slot]) {
+      index.remove(deviceIds[slot], string(trips[slot]), stopIds(slot));
+    }
+
+    int trip = intern(newUpdate.getTripId());
+    int sequence = newUpdate.getStopSequence();
+    if (history > 0) {
+      if (present[slot] && trip != NONE && trip == trips[slot]) {
+        // Same trip: keep the earlier stops, then the replaced departure.
+        carryHistory(slot, sequence);
+      } else {
+        historyCounts[slot] = 0;
+        for (Update stop : newUpdate.getEarlierStops()) {
+          pushHistory(slot, intern(stop.getStopId()), stop.getStopSequence(),
+              stop.getDepTime(), stop.getDepDelay());
+        }
+      }
+    }
+
+    if (!present[slot]) {
+      present[slot] = true;
+      count++;
+    }
+    trips[slot] = trip;
+    stops[slot] = intern(newUpdate.getStopId());
+    sequences[slot] = sequence;
+    times[slot] = newTime;
+    delays[slot] = newUpdate.getDepDelay();
+    published[slot] = null;
+    publishedById = null;
+    if (index != null) {
+      index.add(deviceIds[slot], string(trip), stopIds(slot));
+    }
+
+    if (newTime > maxStamp) {
+      maxStamp = newTime;
+    }
+    if (lastSeen[slot] < newTime) {
+      lastSeen[slot] = newTime;
+    }
+    return true;
+  }
+
+  public FeedMessage getUpdateFeedMessage() {
+    FeedMessage.Builder feedMessage =
+        GtfsRealtimeLibrary.createFeedMessageBuilder();
+
+    for (int slot = 0; slot < size; slot++) {
+      if (present[slot]) {
+        feedMessage.addEntity(getUpdate(slot).getFeedEntity());
+      }
+    }
+
+    return feedMessage.build();
+  }
+
+  public List<FeedEntity> getFeedEntities() {
+    List<FeedEntity> entities = new ArrayList<FeedEntity>(count);
+    for (int slot = 0; slot < size; slot++) {
+      if (present[slot]) {
+        entities.add(getUpdate(slot).getFeedEntity());
+      }
+    }
+    return entities;
+  }
+
+  public long maxTime() {
+    return maxStamp;
+  }
+
+  public void setMaxStopsPerTrip(int maxStops) {
+    history = Math.max(0, maxStops - 1);
+    int capacity = deviceIds.length * history;
+    historyStops = new int[capacity];
+    historySequences = new int[capacity];
+    historyTimes = new long[capacity];
+    historyDelays = new long[capacity];
+    Arrays.fill(historyCounts, 0);
+    Arrays.fill(published, null);
+    publishedById = null;
+  }
+
+  public void setIndex(UpdateIndex index) {
+    this.index = index;
+  }
+
+  public void addDiscoveredBus(String busID, long time) {
+    if (!slots.containsKey(busID)) {
+      lastSeen[slotFor(busID)] = time;
+    }
+  }
+
+  public void clearInactive(long ageLim) {
+    /**
+     * Frees the slots of buses that are neither active nor hold an update,
+     * and republishes the bus list.
+     */
+    long timeNow = System.currentTimeMillis();
+    ArrayList<String> active = new ArrayList<String>();
+    for (int slot = 0; slot < size; slot++) {
+      if (deviceIds[slot] == null) {
+        continue;
+      }
+      if (timeNow - lastSeen[slot] < ageLim) {
+        active.add(deviceIds[slot]);
+      } else if (!present[slot]) {
+        freeSlot(slot);
+      }
+    }
+    busIDs = Collections.unmodifiableList(active);
+  }
+
+  public List<String> getBusIDs() {
+    return busIDs;
+  }
+
+  public int clearOld(long ageLim) {
+    long timeNow = System.currentTimeMillis();
+    int removed = 0;
+
+    for (int slot = 0; slot < size; slot++) {
+      if (present[slot] && timeNow - times[slot] >= ageLim) {
+        if (index != null) {
+          index.remove(deviceIds[slot], string(trips[slot]), stopIds(slot));
+        }
+        present[slot] = false;
+        historyCounts[slot] = 0;
+        published[slot] = null;
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      publishedById = null;
+    }
+
+    count -= removed;
+    if (count == 0) {
+      maxStamp = 0L;
+    }
+    return removed;
+  }
+
+  public Map<String, Update> getUpdatesById() {
+    /**
+     * The map is immutable, so it is only rebuilt when an update was added
+     * or removed since the last call.
+     */
+    if (publishedById != null) {
+      return publishedById;
+    }
+    HashMap<String, Update> updates = new HashMap<String, Update>(count * 2);
+    for (int slot = 0; slot < size; slot++) {
+      if (present[slot]) {
+        updates.put(deviceIds[slot], getUpdate(slot));
+      }
+    }
+    publishedById = Collections.unmodifiableMap(updates);
+    return publishedById;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * @return the Update for a slot, rebuilt if the slot changed since it was
+   *         last published.
+   */
+  private Update getUpdate(int slot) {
+    Update update = published[slot];
+    if (update != null) {
+      return update;
+    }
+
+    update = new Update(deviceIds[slot], string(trips[slot]),
+        string(stops[slot]), sequences[slot], times[slot], delays[slot]);
+    int n = historyCounts[slot];
+    if (n > 0) {
+      List<Update> earlierStops = new ArrayList<Update>(n);
+      for (int i = slot * history; i < slot * history + n; i++) {
+        earlierStops.add(new Update(deviceIds[slot], string(trips[slot]),
+            string(historyStops[i]), historySequences[i], historyTimes[i],
+            historyDelays[i]));
+      }
+      update = update.withEarlierStops(Collections.unmodifiableList(earlierStops));
+    }
+    published[slot] = update;
+    return update;
+  }
+
+  /**
+   * @return the stops of a slot's TripUpdate, earlier stops first, for the
+   *         index.
+   */
+  private List<String> stopIds(int slot) {
+    int n = historyCounts[slot];
+    List<String> ids = new ArrayList<String>(n + 1);
+    for (int i = slot * history; i < slot * history + n; i++) {
+      ids.add(string(historyStops[i]));
+    }
+    ids.add(string(stops[slot]));
+    return ids;
+  }
+
+  /**
+   * Drop the slot's earlier stops at or after the new stop sequence, then
+   * append the departure being replaced, as
+   * {@link Update#withEarlierStops(Update, int)} does.
+   */
+  private void carryHistory(int slot, int sequence) {
+    int base = slot * history;
+    int kept = 0;
+    for (int i = base; i < base + historyCounts[slot]; i++) {
+      if (historySequences[i] < sequence) {
+        int to = base + kept++;
+        historyStops[to] = historyStops[i];
+        historySequences[to] = historySequences[i];
+        historyTimes[to] = historyTimes[i];
+        historyDelays[to] = historyDelays[i];
+      }
+    }
+    historyCounts[slot] = kept;
+    if (sequences[slot] < sequence) {
+      pushHistory(slot, stops[slot], sequences[slot], times[slot],
+          delays[slot]);
+    }
+  }
+
+  /**
+   * Append an earlier stop to a slot, dropping its oldest one if full.
+   */
+  private void pushHistory(int slot, int stop, int sequence, long time,
+      long delay) {
+    int base = slot * history;
+    int n = historyCounts[slot];
+    if (n == history) {
+      System.arraycopy(historyStops, base + 1, historyStops, base, n - 1);
+      System.arraycopy(historySequences, base + 1, historySequences, base, n - 1);
+      System.arraycopy(historyTimes, base + 1, historyTimes, base, n - 1);
+      System.arraycopy(historyDelays, base + 1, historyDelays, base, n - 1);
+      n--;
+    }
+    historyStops[base + n] = stop;
+    historySequences[base + n] = sequence;
+    historyTimes[base + n] = time;
+    historyDelays[base + n] = delay;
+    historyCounts[slot] = n + 1;
+  }
+
+  /**
+   * @return the slot of a vehicle, assigning one if it has none.
+   */
+  private int slotFor(String id) {
+    Integer slot = slots.get(id);
+    if (slot != null) {
+      return slot;
+    }
+
+    int s;
+    if (freeCount > 0) {
+      s = free[--freeCount];
+    } else {
+      if (size == deviceIds.length) {
+        grow(size * 2);
+      }
+      s = size++;
+    }
+    deviceIds[s] = id;
+    lastSeen[s] = 0L;
+    present[s] = false;
+    historyCounts[s] = 0;
+    published[s] = null;
+    slots.put(id, s);
+    return s;
+  }
+
+  private void freeSlot(int slot) {
+    slots.remove(deviceIds[slot]);
+    deviceIds[slot] = null;
+    if (freeCount == free.length) {
+      free = Arrays.copyOf(free, freeCount * 2);
+    }
+    free[freeCount++] = slot;
+  }
+
+  private void grow(int capacity) {
+    deviceIds = Arrays.copyOf(deviceIds, capacity);
+    lastSeen = Arrays.copyOf(lastSeen, capacity);
+    trips = Arrays.copyOf(trips, capacity);
+    stops = Arrays.copyOf(stops, capacity);
+    sequences = Arrays.copyOf(sequences, capacity);
+    present = Arrays.copyOf(present, capacity);
+    times = Arrays.copyOf(times, capacity);
+    delays = Arrays.copyOf(delays, capacity);
+    published = Arrays.copyOf(published, capacity);
+    historyCounts = Arrays.copyOf(historyCounts, capacity);
+    historyStops = Arrays.copyOf(historyStops, capacity * history);
+    historySequences = Arrays.copyOf(historySequences, capacity * history);
+    historyTimes = Arrays.copyOf(historyTimes, capacity * history);
+    historyDelays = Arrays.copyOf(historyDelays, capacity * history);
+  }
+
+  private int intern(String str) {
+    if (str == null) {
+      return NONE;
+    }
+    Integer code = codes.get(str);
+    if (code == null) {
+      code = strings.size();
+      strings.add(str);
+      codes.put(str, code);
+    }
+    return code;
+  }
+
+  private String string(int code) {
+    return code == NONE ? null : strings.get(code);
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Cost of the publish stages of a refresh: building the FeedMessage from a
+ * steady-state UpdateList, serializing it, and producing the EncodedFeed
+ * (serialization plus compressed variants). The streaming variants encode
+ * the same bytes from the header and cached entities without building the
+ * FeedMessage.
+ *
+ * @author jlynn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FeedBuildBenchmark {
+
+  @Param({"100", "1000", "10000", "100000"})
+  public int vehicles;
+
+  private UpdateList list;
+
+  private FeedMessage feed;
+
+  @Setup
+  public void setup() {
+    list = SyntheticFleet.updateList(SyntheticFleet.updates(vehicles,
+        System.currentTimeMillis()));
+    feed = list.getUpdateFeedMessage();
+  }
+
+  @Benchmark
+  public FeedMessage getUpdateFeedMessage() {
+    return list.getUpdateFeedMessage();
+  }
+
+  @Benchmark
+  public byte[] serialize() {
+    return feed.toByteArray();
+  }
+
+  @Benchmark
+  public EncodedFeed encode() {
+    return EncodedFeed.encode(feed);
+  }
+
+  @Benchmark
+  public byte[] serializeStreaming() {
+    return FeedWriter.toByteArray(feed.getHeader(), list.getFeedEntities());
+  }
+
+  @Benchmark
+  public EncodedFeed encodeStreaming() {
+    return EncodedFeed.encode(feed.getHeader(), list.getFeedEntities(), 0L);
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+/**
+ * Heap retained per vehicle by each UpdateStore, before and after a publish
+ * (whose Updates and entities the provider's snapshot keeps). JMH does not
+ * measure footprint, so this is a plain main class:
+ * "java -cp target/*-withAllDependencies.jar
+ * org.onebusaway.gtfs_realtime.trip_updates.StoreFootprint [vehicles]".
+ * Run each store in a fresh JVM for the most stable numbers.
+ *
+ * @author jlynn
+ */
+public class StoreFootprint {
+
+  public static void main(String[] args) throws InterruptedException {
+    int vehicles = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    for (String store : new String[] {"objects", "columnar"}) {
+      measure(store, vehicles);
+    }
+  }
+
+  private static void measure(String store, int vehicles)
+      throws InterruptedException {
+    long base = usedHeap();
+    UpdateStore list = SyntheticFleet.updateStore(store,
+        SyntheticFleet.updates(vehicles, System.currentTimeMillis()));
+    long stored = usedHeap() - base;
+
+    Map<String, Update> snapshot = list.getUpdatesById();
+    List<FeedEntity> entities = list.getFeedEntities();
+    long published = usedHeap() - base;
+
+    System.out.println(store + ": " + vehicles + " vehicles, "
+        + stored / vehicles + " bytes/vehicle stored, "
+        + published / vehicles + " bytes/vehicle with the published snapshot ("
+        + snapshot.size() + " vehicles, " + entities.size() + " entities)");
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import org.bson.BSON;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Synthetic fleets for the pipeline benchmarks: one departure per vehicle,
+ * each on its own trip, spread over 997 stops.
+ *
+ * @author jlynn
+ */
+public class SyntheticFleet {
+
+  private static final int STOPS_PER_TRIP = 40;
+
+  public static String deviceId(int i) {
+    return "device-" + i;
+  }
+
+  /**
+   * @param n number of vehicles.
+   * @param time departure time of every update, in ms.
+   */
+  public static Update[] updates(int n, long time) {
+    Update[] updates = new Update[n];
+    for (int i = 0; i < n; i++) {
+      updates[i] = new Update(deviceId(i), "trip-" + i,
+          "stop-" + (i % 997), i % STOPS_PER_TRIP, time + i, (i % 600) * 1000L);
+    }
+    return updates;
+  }
+
+  /**
+   * @param n number of vehicles.
+   * @param time departure time of every document, in ms.
+   * @param numeric whether numeric fields are stored as numbers (true) or as
+   *          strings (false).
+   */
+  public static DBObject[] documents(int n, long time, boolean numeric) {
+    DBObject[] docs = new DBObject[n];
+    for (int i = 0; i < n; i++) {
+      int stopSequence = i % STOPS_PER_TRIP;
+      long depTime = time + i;
+      long delay = (i % 600) * 1000L;
+      BasicDBObject doc = new BasicDBObject("device_id", deviceId(i))
+          .append("type", 1)
+          .append("trip_id", "trip-" + i)
+          .append("stop_id", "stop-" + (i % 997));
+      if (numeric) {
+        doc.append("stop_sequence", stopSequence).append("time", depTime)
+            .append("delay", delay);
+      } else {
+        doc.append("stop_sequence", Integer.toString(stopSequence))
+            .append("time", Long.toString(depTime))
+            .append("delay", Long.toString(delay));
+      }
+      docs[i] = doc;
+    }
+    return docs;
+  }
+
+  /**
+   * The documents of {@link #documents(int, long, boolean)} as BSON, each
+   * also carrying fields Update does not read: a received time and the
+   * vehicle position it was derived from, as a nested sub-document.
+   */
+  public static byte[][] bson(int n, long time, boolean numeric) {
+    DBObject[] docs = documents(n, time, numeric);
+    byte[][] bson = new byte[n][];
+    for (int i = 0; i < n; i++) {
+      DBObject position = new BasicDBObject("latitude", 40.7 + i * 1e-6)
+          .append("longitude", -74.0 - i * 1e-6).append("bearing", i % 360)
+          .append("speed", (i % 30) * 0.5);
+      DBObject vehicle = new BasicDBObject("position", position)
+          .append("timestamp", time / 1000 + i)
+          .append("vehicle", new BasicDBObject("id", deviceId(i))
+              .append("label", "bus " + i));
+      docs[i].put("received", time + i + 500);
+      docs[i].put("entity", new BasicDBObject("id", deviceId(i))
+          .append("vehicle", vehicle));
+      bson[i] = BSON.encode(docs[i]);
+    }
+    return bson;
+  }
+
+  /**
+   * @return an UpdateList holding the given updates.
+   */
+  public static UpdateList updateList(Update[] updates) {
+    UpdateList list = new UpdateList();
+    for (Update update : updates) {
+      list.addUpdate(update);
+    }
+    return list;
+  }
+
+  /**
+   * @param store "objects" or "columnar".
+   * @return a store of that type holding the given updates.
+   */
+  public static UpdateStore updateStore(String store, Update[] updates) {
+    UpdateStore list = store.equals("columnar") ? new ColumnarUpdateList()
+        : new UpdateList();
+    for (Update update : updates) {
+      list.addUpdate(update);
+    }
+    return list;
+  }
+}
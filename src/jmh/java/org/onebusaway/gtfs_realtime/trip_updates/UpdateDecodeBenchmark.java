@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+
+/**
+ * Cost of turning a fleet's worth of Mongo documents into Updates, with
+ * numeric fields stored either as numbers or as strings. The bson methods
+ * start from the wire bytes and compare the driver's default decoder with
+ * {@link UpdateDBDecoder}, which skips the fields Update does not read.
+ *
+ * @author jlynn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UpdateDecodeBenchmark {
+
+  @Param({"100", "1000", "10000", "100000"})
+  public int vehicles;
+
+  @Param({"true", "false"})
+  public boolean numeric;
+
+  private DBObject[] documents;
+
+  private byte[][] bson;
+
+  private final DBDecoder defaultDecoder = new DefaultDBDecoder();
+
+  private final DBDecoder updateDecoder = new UpdateDBDecoder();
+
+  @Setup
+  public void setup() {
+    long now = System.currentTimeMillis();
+    documents = SyntheticFleet.documents(vehicles, now, numeric);
+    bson = SyntheticFleet.bson(vehicles, now, numeric);
+  }
+
+  @Benchmark
+  public void decode(Blackhole bh) {
+    for (DBObject doc : documents) {
+      bh.consume(new Update(doc));
+    }
+  }
+
+  @Benchmark
+  public void bsonDefaultDecoder(Blackhole bh) {
+    for (byte[] doc : bson) {
+      bh.consume(new Update(defaultDecoder.decode(doc, (DBCollection) null)));
+    }
+  }
+
+  @Benchmark
+  public void bsonUpdateDecoder(Blackhole bh) {
+    for (byte[] doc : bson) {
+      bh.consume(new Update(updateDecoder.decode(doc, (DBCollection) null)));
+    }
+  }
+}
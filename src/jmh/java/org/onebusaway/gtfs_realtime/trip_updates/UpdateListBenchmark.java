@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the UpdateStore stages of a refresh: adding a new fleet, replacing
+ * every vehicle's update with a newer one, and expiring old updates, for
+ * each store. Run with -prof gc to compare allocation per refresh.
+ *
+ * The fleets are built once per trial. Only addReplace needs a fresh store
+ * per call, since a replaced store would reject the same updates again, so
+ * only its {@link ReplaceState} is set up per invocation. clearOld builds
+ * the store it expires; subtract addNew to get the expiry alone.
+ *
+ * @author jlynn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UpdateListBenchmark {
+
+  private static final long AGE_LIM = 10 * 60 * 1000;
+
+  @Param({"100", "1000", "10000", "100000"})
+  public int vehicles;
+
+  @Param({"objects", "columnar"})
+  public String store;
+
+  private Update[] current;
+
+  private Update[] newer;
+
+  /**
+   * Half the fleet is older than AGE_LIM.
+   */
+  private Update[] mixed;
+
+  /**
+   * A store holding the current fleet, refilled before each addReplace call.
+   */
+  @State(Scope.Thread)
+  public static class ReplaceState {
+
+    UpdateStore list;
+
+    @Setup(Level.Invocation)
+    public void fill(UpdateListBenchmark benchmark) {
+      list = SyntheticFleet.updateStore(benchmark.store, benchmark.current);
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    long now = System.currentTimeMillis();
+    current = SyntheticFleet.updates(vehicles, now - 60 * 1000);
+    newer = SyntheticFleet.updates(vehicles, now);
+    mixed = SyntheticFleet.updates(vehicles, now - 60 * 1000);
+    Update[] expired = SyntheticFleet.updates(vehicles, now - 2 * AGE_LIM);
+    for (int i = 0; i < vehicles; i += 2) {
+      mixed[i] = expired[i];
+    }
+  }
+
+  @Benchmark
+  public UpdateStore addNew() {
+    return SyntheticFleet.updateStore(store, current);
+  }
+
+  @Benchmark
+  public UpdateStore addReplace(ReplaceState state) {
+    for (Update update : newer) {
+      state.list.addUpdate(update);
+    }
+    return state.list;
+  }
+
+  @Benchmark
+  public UpdateStore clearOld() {
+    UpdateStore mixedList = SyntheticFleet.updateStore(store, mixed);
+    mixedList.clearOld(AGE_LIM);
+    return mixedList;
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+
+/**
+ * Keeps the deltas between the last few published versions of the feed, so
+ * clients that say which version they already hold can be sent a
+ * DIFFERENTIAL feed. That feed holds only the entities added or changed since
+ * then, plus is_deleted entities for vehicles that dropped out. Clients too
+ * far behind the ring, or ahead of it, get the full dataset.
+ *
+ * Each publish replaces an immutable copy of the ring through an atomic
+ * reference, so getFeedSince never locks and never waits for a publish.
+ *
+ * @author jlynn
+ */
+public class DifferentialFeedHistory {
+
+  /**
+   * Changes that turned version - 1 into version.
+   */
+  private static class Delta {
+    final long version;
+    final Map<String, FeedEntity> changed;
+    final Set<String> deleted;
+
+    Delta(long version, Map<String, FeedEntity> changed, Set<String> deleted) {
+      this.version = version;
+      this.changed = changed;
+      this.deleted = deleted;
+    }
+  }
+
+  /**
+   * The ring as of one publish. Never modified once published, except for
+   * its cache of differential feeds, which is safe to fill concurrently.
+   */
+  private static class Ring {
+    /**
+     * Oldest first.
+     */
+    final Delta[] deltas;
+    final Map<String, Update> previous;
+    final EncodedFeed current;
+
+    /**
+     * Differential feeds already encoded for the current version, by the
+     * version the client holds.
+     */
+    final ConcurrentHashMap<Long, EncodedFeed> cache =
+        new ConcurrentHashMap<Long, EncodedFeed>();
+
+    Ring(Delta[] deltas, Map<String, Update> previous, EncodedFeed current) {
+      this.deltas = deltas;
+      this.previous = previous;
+      this.current = current;
+    }
+  }
+
+  private final int _capacity;
+
+  private final AtomicReference<Ring> _ring = new AtomicReference<Ring>(
+      new Ring(new Delta[0], Collections.<String, Update>emptyMap(), null));
+
+  /**
+   * @param capacity number of deltas to keep.
+   */
+  public DifferentialFeedHistory(int capacity) {
+    _capacity = capacity;
+  }
+
+  /**
+   * Record a newly published version of the feed. Publishes are serialized
+   * with each other, but not with readers.
+   */
+  public synchronized void publish(UpdateSnapshot snapshot) {
+    Ring ring = _ring.get();
+    Map<String, Update> updates = snapshot.getVehicles();
+    Map<String, FeedEntity> changed = new LinkedHashMap<String, FeedEntity>();
+    Set<String> deleted = new HashSet<String>();
+
+    for (Map.Entry<String, Update> entry : updates.entrySet()) {
+      // Updates are immutable, so an unchanged vehicle keeps the same object.
+      if (ring.previous.get(entry.getKey()) != entry.getValue()) {
+        changed.put(entry.getKey(), entry.getValue().getFeedEntity());
+      }
+    }
+    for (String id : ring.previous.keySet()) {
+      if (!updates.containsKey(id)) {
+        deleted.add(id);
+      }
+    }
+
+    EncodedFeed full = snapshot.getEncodedFeed();
+    int kept = Math.min(ring.deltas.length, _capacity - 1);
+    Delta[] deltas = new Delta[kept + 1];
+    System.arraycopy(ring.deltas, ring.deltas.length - kept, deltas, 0, kept);
+    deltas[kept] = new Delta(full.getVersion(),
+        Collections.unmodifiableMap(changed),
+        Collections.unmodifiableSet(deleted));
+
+    _ring.set(new Ring(deltas, updates, full));
+  }
+
+  /**
+   * @param since the feed version the client already holds.
+   * @return a DIFFERENTIAL feed from since to the current version, or the
+   *         full dataset if since is outside the ring.
+   */
+  public EncodedFeed getFeedSince(long since) {
+    Ring ring = _ring.get();
+    if (ring.current == null || ring.deltas.length == 0) {
+      return ring.current;
+    }
+    long oldest = ring.deltas[0].version - 1;
+    if (since < oldest || since > ring.current.getVersion()) {
+      return ring.current;
+    }
+
+    EncodedFeed feed = ring.cache.get(since);
+    if (feed == null) {
+      // Racing readers may both build it; the feeds are identical.
+      feed = buildDifferential(ring, since);
+      EncodedFeed prev = ring.cache.putIfAbsent(since, feed);
+      if (prev != null) {
+        feed = prev;
+      }
+    }
+    return feed;
+  }
+
+  private static EncodedFeed buildDifferential(Ring ring, long since) {
+    Map<String, FeedEntity> changed = new LinkedHashMap<String, FeedEntity>();
+    Set<String> deleted = new HashSet<String>();
+
+    for (Delta delta : ring.deltas) {
+      if (delta.version <= since) {
+        continue;
+      }
+      for (Map.Entry<String, FeedEntity> entry : delta.changed.entrySet()) {
+        changed.put(entry.getKey(), entry.getValue());
+        deleted.remove(entry.getKey());
+      }
+      for (String id : delta.deleted) {
+        changed.remove(id);
+        deleted.add(id);
+      }
+    }
+
+    FeedHeader header = ring.current.getHeader().toBuilder()
+        .setIncrementality(Incrementality.DIFFERENTIAL).build();
+
+    List<FeedEntity> entities = new ArrayList<FeedEntity>(changed.values());
+    for (String id : deleted) {
+      entities.add(FeedEntity.newBuilder().setId(id).setIsDeleted(true).build());
+    }
+
+    return EncodedFeed.encode(header, entities, ring.current.getVersion());
+  }
+}
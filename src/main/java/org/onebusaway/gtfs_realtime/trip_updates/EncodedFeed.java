@@ -0,0 +1,367 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * An immutable, already-serialized trip updates feed. It is encoded once per
+ * publish and shared by every request. The MD5 of the encoded entities,
+ * which leaves out the header and so its timestamp, is used as the HTTP
+ * entity tag, with a suffix for each compressed variant. The gzip and
+ * deflate variants are compressed, and the tag hashed, the first time each
+ * is asked for, so a feed republished before anyone fetches it costs only
+ * its encoding.
+ *
+ * A feed encoded from a header and entity list is streamed by
+ * {@link FeedWriter}; its FeedMessage is only built if someone asks for it.
+ *
+ * @author jlynn
+ */
+public class EncodedFeed {
+
+  /**
+   * Tag of FeedMessage.header: field 1, length-delimited.
+   */
+  private static final byte HEADER_TAG = 0x0a;
+
+  /**
+   * Smallest non-zero weight a client can give in Accept-Encoding.
+   */
+  private static final double MIN_WEIGHT = 0.001;
+
+  /**
+   * Content codings the feed is available in.
+   */
+  public enum Encoding {
+    IDENTITY("identity", ""), GZIP("gzip", "-gzip"), DEFLATE("deflate", "-deflate");
+
+    private final String name;
+    private final String etagSuffix;
+
+    private Encoding(String name, String etagSuffix) {
+      this.name = name;
+      this.etagSuffix = etagSuffix;
+    }
+
+    /**
+     * @return the Content-Encoding token for this coding.
+     */
+    public String getName() {
+      return name;
+    }
+  }
+
+  private final FeedHeader header;
+  private final List<FeedEntity> entities;
+  private final long version;
+  /**
+   * The feed in each content coding; an entry left null is compressed on
+   * first use.
+   */
+  private final AtomicReferenceArray<byte[]> bytes =
+      new AtomicReferenceArray<byte[]>(Encoding.values().length);
+  /**
+   * Computed on first use.
+   */
+  private volatile byte[] contentHash;
+  private volatile String hash;
+
+  /**
+   * Direct copies of bytes, made on first use, that channels can write
+   * without copying them into a temporary direct buffer per request.
+   */
+  private final AtomicReferenceArray<ByteBuffer> direct =
+      new AtomicReferenceArray<ByteBuffer>(Encoding.values().length);
+
+  /**
+   * Built on first use when encoded from a header and entity list.
+   */
+  private volatile FeedMessage feed;
+
+  private EncodedFeed(FeedHeader header, List<FeedEntity> entities,
+      FeedMessage feed, long version, byte[] raw) {
+    this.header = header;
+    this.entities = entities;
+    this.feed = feed;
+    this.version = version;
+    this.bytes.set(Encoding.IDENTITY.ordinal(), raw);
+  }
+
+  public static EncodedFeed encode(FeedMessage feed) {
+    return encode(feed, 0L);
+  }
+
+  /**
+   * @param version the publish counter this feed corresponds to.
+   */
+  public static EncodedFeed encode(FeedMessage feed, long version) {
+    return new EncodedFeed(feed.getHeader(), feed.getEntityList(), feed,
+        version, feed.toByteArray());
+  }
+
+  /**
+   * Encode a feed straight from its parts, without building the
+   * FeedMessage.
+   *
+   * @param entities the feed's entities; must not be modified afterwards.
+   * @param version the publish counter this feed corresponds to.
+   */
+  public static EncodedFeed encode(FeedHeader header,
+      List<FeedEntity> entities, long version) {
+    entities = Collections.unmodifiableList(entities);
+    return new EncodedFeed(header, entities, null, version,
+        FeedWriter.toByteArray(header, entities));
+  }
+
+  public FeedHeader getHeader() {
+    return header;
+  }
+
+  public List<FeedEntity> getEntities() {
+    return entities;
+  }
+
+  public FeedMessage getFeedMessage() {
+    FeedMessage msg = feed;
+    if (msg == null) {
+      msg = FeedMessage.newBuilder().setHeader(header)
+          .addAllEntity(entities).build();
+      feed = msg;
+    }
+    return msg;
+  }
+
+  /**
+   * @return the version of the feed this encodes; differential feeds carry
+   *         the version they bring the client up to.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return a read-only view of the encoded feed.
+   */
+  public ByteBuffer getBytes() {
+    return getBytes(Encoding.IDENTITY);
+  }
+
+  /**
+   * @return a read-only view of the feed in the given content coding.
+   */
+  public ByteBuffer getBytes(Encoding encoding) {
+    return ByteBuffer.wrap(bytes(encoding)).asReadOnlyBuffer();
+  }
+
+  /**
+   * @return a read-only view of a direct buffer holding the feed in the
+   *         given content coding, shared by every caller.
+   */
+  public ByteBuffer getDirectBytes(Encoding encoding) {
+    ByteBuffer buf = direct.get(encoding.ordinal());
+    if (buf == null) {
+      byte[] raw = bytes(encoding);
+      buf = ByteBuffer.allocateDirect(raw.length);
+      buf.put(raw);
+      buf.flip();
+      if (!direct.compareAndSet(encoding.ordinal(), null, buf)) {
+        buf = direct.get(encoding.ordinal());
+      }
+    }
+    return buf.asReadOnlyBuffer();
+  }
+
+  public int getLength() {
+    return getLength(Encoding.IDENTITY);
+  }
+
+  public int getLength(Encoding encoding) {
+    return bytes(encoding).length;
+  }
+
+  /**
+   * @return the MD5 of the encoded feed after its header, so two feeds with
+   *         the same entities hash the same whatever their timestamps.
+   */
+  byte[] getContentHash() {
+    return contentHash().clone();
+  }
+
+  /**
+   * @return the quoted entity tag for this version of the feed.
+   */
+  public String getETag() {
+    return getETag(Encoding.IDENTITY);
+  }
+
+  /**
+   * @return the quoted entity tag for this version of the feed in the given
+   *         content coding.
+   */
+  public String getETag(Encoding encoding) {
+    String hex = hash;
+    if (hex == null) {
+      hex = Hex.encodeHexString(contentHash());
+      hash = hex;
+    }
+    return "\"" + hex + encoding.etagSuffix + "\"";
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    writeTo(out, Encoding.IDENTITY);
+  }
+
+  public void writeTo(OutputStream out, Encoding encoding) throws IOException {
+    out.write(bytes(encoding));
+  }
+
+  /**
+   * @return the feed in the given content coding, compressing it if this is
+   *         the first use. Racing threads may both compress it; one result
+   *         is kept.
+   */
+  private byte[] bytes(Encoding encoding) {
+    byte[] encoded = bytes.get(encoding.ordinal());
+    if (encoded == null) {
+      byte[] raw = bytes.get(Encoding.IDENTITY.ordinal());
+      encoded = encoding == Encoding.GZIP ? FeedWriter.gzip(raw)
+          : FeedWriter.deflate(raw);
+      if (!bytes.compareAndSet(encoding.ordinal(), null, encoded)) {
+        encoded = bytes.get(encoding.ordinal());
+      }
+    }
+    return encoded;
+  }
+
+  /**
+   * Pick the content coding the client weights highest, preferring gzip, then
+   * deflate, then identity among equal weights. A coding the client does not
+   * name gets the weight of "*" if present; otherwise identity is acceptable
+   * at the lowest weight and the others are not. A weight of 0, or an
+   * unparseable one, refuses the coding. If the client refuses everything,
+   * identity is sent anyway.
+   *
+   * @param acceptEncoding value of the Accept-Encoding header, or null.
+   */
+  public static Encoding negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return Encoding.IDENTITY;
+    }
+    double[] q = {-1, -1, -1};
+    double any = -1;
+    for (String token : acceptEncoding.split(",")) {
+      String[] parts = token.trim().split(";");
+      String name = parts[0].trim().toLowerCase();
+      if (name.isEmpty()) {
+        continue;
+      }
+      double weight = 1.0;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim().replace(" ", "");
+        if (param.startsWith("q=")) {
+          try {
+            weight = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException ex) {
+            weight = 0.0;
+          }
+        }
+      }
+      if (name.equals("*")) {
+        any = weight;
+      } else if (name.equals("gzip") || name.equals("x-gzip")) {
+        q[Encoding.GZIP.ordinal()] = weight;
+      } else if (name.equals("deflate")) {
+        q[Encoding.DEFLATE.ordinal()] = weight;
+      } else if (name.equals("identity")) {
+        q[Encoding.IDENTITY.ordinal()] = weight;
+      }
+    }
+
+    Encoding best = Encoding.IDENTITY;
+    double bestWeight = 0.0;
+    for (Encoding encoding : new Encoding[] {Encoding.GZIP, Encoding.DEFLATE,
+        Encoding.IDENTITY}) {
+      double weight = q[encoding.ordinal()];
+      if (weight < 0) {
+        weight = any >= 0 ? any
+            : encoding == Encoding.IDENTITY ? MIN_WEIGHT : 0.0;
+      }
+      if (weight > bestWeight) {
+        best = encoding;
+        bestWeight = weight;
+      }
+    }
+    return best;
+  }
+
+  private byte[] contentHash() {
+    byte[] md5 = contentHash;
+    if (md5 == null) {
+      md5 = contentHash(bytes.get(Encoding.IDENTITY.ordinal()),
+          header.getIncrementality() == Incrementality.DIFFERENTIAL);
+      contentHash = md5;
+    }
+    return md5;
+  }
+
+  /**
+   * @param differential whether the feed is DIFFERENTIAL, which is hashed in
+   *          so it never shares a tag with a full feed of the same entities.
+   * @return the MD5 of the encoded feed after its header, which is field 1
+   *         and so always written first.
+   */
+  private static byte[] contentHash(byte[] raw, boolean differential) {
+    MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+    int offset = 0;
+    if (raw.length > 0 && raw[0] == HEADER_TAG) {
+      long length = 0;
+      int shift = 0;
+      byte b;
+      offset = 1;
+      do {
+        b = raw[offset++];
+        length |= (long) (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      offset += (int) length;
+    }
+    md5.update(raw, offset, raw.length - offset);
+    if (differential) {
+      md5.update((byte) 1);
+    }
+    return md5.digest();
+  }
+}
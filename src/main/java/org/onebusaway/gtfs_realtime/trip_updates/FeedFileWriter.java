@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes each published feed to a file for static mirrors, but only when its
+ * entities have changed; a feed that differs only in its header timestamp is
+ * not rewritten. The feed's direct buffer is written through a FileChannel to
+ * a temporary file in the same directory, forced to disk and then atomically
+ * moved over the path, so readers only ever see a complete feed. Optionally the last few
+ * changed feeds are also kept as path.timestamp.
+ *
+ * @author jlynn
+ */
+public class FeedFileWriter {
+
+  private static final Logger _log = LoggerFactory.getLogger(FeedFileWriter.class);
+
+  private File _path;
+
+  /**
+   * Number of timestamped copies kept next to the path; 0 keeps none.
+   */
+  private int _versions = 0;
+
+  /**
+   * Kept copies, oldest first. Filled from the directory on first write.
+   */
+  private List<File> _kept;
+
+  private long _lastVersion = -1;
+
+  private byte[] _lastHash;
+
+  public void setPath(File path) {
+    _path = path;
+  }
+
+  public void setVersions(int versions) {
+    _versions = versions;
+  }
+
+  /**
+   * Write the feed if its entities differ from the last one written. Feeds
+   * older than the last one offered are ignored.
+   *
+   * @return true if the file was written.
+   */
+  public synchronized boolean write(EncodedFeed feed) throws IOException {
+    if (feed.getVersion() <= _lastVersion) {
+      return false;
+    }
+    _lastVersion = feed.getVersion();
+
+    byte[] hash = feed.getContentHash();
+    if (Arrays.equals(hash, _lastHash) && _path.exists()) {
+      return false;
+    }
+
+    File tmp = new File(_path.getPath() + ".tmp");
+    writeFile(tmp, feed);
+    Files.move(tmp.toPath(), _path.toPath(), StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    _lastHash = hash;
+
+    if (_versions > 0) {
+      keepVersion(feed);
+    }
+    return true;
+  }
+
+  private void keepVersion(EncodedFeed feed) throws IOException {
+    if (_kept == null) {
+      _kept = findVersions();
+    }
+    File version = new File(_path.getPath() + "."
+        + feed.getHeader().getTimestamp());
+    writeFile(version, feed);
+    _kept.remove(version);
+    _kept.add(version);
+    while (_kept.size() > _versions) {
+      File old = _kept.remove(0);
+      if (!old.delete()) {
+        _log.warn("could not delete old feed " + old);
+      }
+    }
+  }
+
+  /**
+   * @return copies left by earlier runs, oldest first.
+   */
+  private List<File> findVersions() {
+    File dir = _path.getAbsoluteFile().getParentFile();
+    String prefix = _path.getName() + ".";
+    List<Long> timestamps = new ArrayList<Long>();
+    String[] names = dir.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.startsWith(prefix)) {
+          try {
+            timestamps.add(Long.parseLong(name.substring(prefix.length())));
+          } catch (NumberFormatException ex) {
+            // not one of ours
+          }
+        }
+      }
+    }
+    Collections.sort(timestamps);
+    List<File> files = new ArrayList<File>();
+    for (Long timestamp : timestamps) {
+      files.add(new File(_path.getPath() + "." + timestamp));
+    }
+    return files;
+  }
+
+  private static void writeFile(File file, EncodedFeed feed)
+      throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      FileChannel channel = out.getChannel();
+      ByteBuffer bytes = feed.getDirectBytes(EncodedFeed.Encoding.IDENTITY);
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+      channel.force(false);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+
+/**
+ * Encodes a FeedMessage from its header and entities without building the
+ * message. The header is written as field 1 and each entity as field 2, in
+ * order, which is exactly what FeedMessage.writeTo() produces for a message
+ * with no extensions or unknown fields, so the bytes are identical. Entities
+ * cache their serialized size, so already-published entities cost a copy.
+ *
+ * The gzip and deflate copies are compressed into an output buffer and a
+ * Deflater kept per thread and reused from feed to feed, so compressing
+ * allocates only the result.
+ *
+ * @author jlynn
+ */
+public class FeedWriter {
+
+  private static final int HEADER_FIELD_NUMBER = 1;
+
+  private static final int ENTITY_FIELD_NUMBER = 2;
+
+  /**
+   * Gzip member header: magic, deflate, no flags, no mtime, no extra flags,
+   * unknown OS.
+   */
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0,
+      0, 0, (byte) 0xff};
+
+  /**
+   * A thread's compression state: a growable output buffer and Deflaters for
+   * raw (gzip) and zlib (deflate) streams.
+   */
+  private static class Scratch {
+    byte[] out = new byte[64 * 1024];
+    final Deflater raw = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    final Deflater zlib = new Deflater();
+    final CRC32 crc = new CRC32();
+  }
+
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  /**
+   * @return the encoded size of the feed, in bytes.
+   */
+  public static int computeSize(FeedHeader header, List<FeedEntity> entities) {
+    int size = CodedOutputStream.computeMessageSize(HEADER_FIELD_NUMBER, header);
+    for (FeedEntity entity : entities) {
+      size += CodedOutputStream.computeMessageSize(ENTITY_FIELD_NUMBER, entity);
+    }
+    return size;
+  }
+
+  /**
+   * @return the encoded feed, in an array of exactly its size.
+   */
+  public static byte[] toByteArray(FeedHeader header, List<FeedEntity> entities) {
+    byte[] bytes = new byte[computeSize(header, entities)];
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    try {
+      write(out, header, entities);
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    out.checkNoSpaceLeft();
+    return bytes;
+  }
+
+  /**
+   * Stream the encoded feed to out. Out is not closed.
+   */
+  public static void writeTo(OutputStream out, FeedHeader header,
+      List<FeedEntity> entities) throws IOException {
+    CodedOutputStream coded = CodedOutputStream.newInstance(out);
+    write(coded, header, entities);
+    coded.flush();
+  }
+
+  /**
+   * @return bytes as a gzip stream.
+   */
+  public static byte[] gzip(byte[] bytes) {
+    Scratch scratch = SCRATCH.get();
+    System.arraycopy(GZIP_HEADER, 0, scratch.out, 0, GZIP_HEADER.length);
+    int n = deflate(scratch, scratch.raw, bytes, GZIP_HEADER.length);
+
+    scratch.crc.reset();
+    scratch.crc.update(bytes, 0, bytes.length);
+    ensureCapacity(scratch, n + 8);
+    n = writeIntLE(scratch.out, n, (int) scratch.crc.getValue());
+    n = writeIntLE(scratch.out, n, bytes.length);
+    return Arrays.copyOf(scratch.out, n);
+  }
+
+  /**
+   * @return bytes as a zlib stream, the HTTP deflate coding.
+   */
+  public static byte[] deflate(byte[] bytes) {
+    Scratch scratch = SCRATCH.get();
+    int n = deflate(scratch, scratch.zlib, bytes, 0);
+    return Arrays.copyOf(scratch.out, n);
+  }
+
+  /**
+   * Compress bytes into the scratch buffer from offset, growing it as needed.
+   *
+   * @return the offset after the compressed data.
+   */
+  private static int deflate(Scratch scratch, Deflater deflater, byte[] bytes,
+      int offset) {
+    deflater.reset();
+    deflater.setInput(bytes);
+    deflater.finish();
+    while (!deflater.finished()) {
+      ensureCapacity(scratch, offset + 1);
+      offset += deflater.deflate(scratch.out, offset,
+          scratch.out.length - offset);
+    }
+    return offset;
+  }
+
+  private static void ensureCapacity(Scratch scratch, int capacity) {
+    if (scratch.out.length < capacity) {
+      scratch.out = Arrays.copyOf(scratch.out,
+          Math.max(capacity, scratch.out.length * 2));
+    }
+  }
+
+  private static int writeIntLE(byte[] out, int offset, int value) {
+    out[offset] = (byte) value;
+    out[offset + 1] = (byte) (value >> 8);
+    out[offset + 2] = (byte) (value >> 16);
+    out[offset + 3] = (byte) (value >> 24);
+    return offset + 4;
+  }
+
+  private static void write(CodedOutputStream out, FeedHeader header,
+      List<FeedEntity> entities) throws IOException {
+    out.writeMessage(HEADER_FIELD_NUMBER, header);
+    for (FeedEntity entity : entities) {
+      out.writeMessage(ENTITY_FIELD_NUMBER, entity);
+    }
+  }
+}
@@ -18,6 +18,7 @@ package org.onebusaway.gtfs_realtime.trip_updates;
 import java.io.File;
 import java.net.URL;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.lang.IllegalArgumentException;
 
@@ -29,8 +30,6 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.Parser;
 import org.onebusaway.cli.CommandLineInterfaceLibrary;
 import org.onebusaway.guice.jsr250.LifecycleService;
-import org.onebusway.gtfs_realtime.exporter.TripUpdatesFileWriter;
-import org.onebusway.gtfs_realtime.exporter.TripUpdatesServlet;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
@@ -47,6 +46,58 @@ public class GtfsRealtimeProducerDemoMain {
     private static final String ARG_COLLECTION_NAME = "collectionName";
 
     private static final String ARG_AGELIM = "ageLim";
+
+    private static final String ARG_FETCH_MODE = "fetchMode";
+
+    private static final String ARG_INCREMENTAL = "incremental";
+
+    private static final String ARG_OVERLAP = "overlap";
+
+    private static final String ARG_STREAMING = "streaming";
+
+    private static final String ARG_PUBLISH_DEBOUNCE = "publishDebounce";
+
+    private static final String ARG_DIFFERENTIAL_HISTORY = "differentialHistory";
+
+    private static final String ARG_MAX_STOPS_PER_TRIP = "maxStopsPerTrip";
+
+    private static final String ARG_FETCH_THREADS = "fetchThreads";
+
+    private static final String ARG_METRICS_PATH = "metricsPath";
+
+    private static final String ARG_REFRESH_INTERVAL = "refreshInterval";
+
+    private static final String ARG_MIN_REFRESH_INTERVAL = "minRefreshInterval";
+
+    private static final String ARG_MAX_REFRESH_INTERVAL = "maxRefreshInterval";
+
+    private static final String ARG_BUS_LIST_INTERVAL = "busListInterval";
+
+    private static final String ARG_SNAPSHOT_PATH = "snapshotPath";
+
+    private static final String ARG_SNAPSHOT_INTERVAL = "snapshotInterval";
+
+    private static final String ARG_REPLAY_PATH = "replayPath";
+
+    private static final String ARG_REPLAY_SPEED = "replaySpeed";
+
+    private static final String ARG_BATCH_SIZE = "batchSize";
+
+    private static final String ARG_READ_PREFERENCE = "readPreference";
+
+    private static final String ARG_CREATE_INDEXES = "createIndexes";
+
+    private static final String ARG_FEEDS = "feeds";
+
+    private static final String ARG_HTTP_SERVER = "httpServer";
+
+    private static final String ARG_HTTP_THREADS = "httpThreads";
+
+    private static final String ARG_UPDATES_PATH_VERSIONS = "updatesPathVersions";
+
+    private static final String ARG_FILTERED_VIEWS = "filteredViews";
+
+    private static final String ARG_TRIPS_PATH = "tripsPath";
     
     public static void main(String[] args) throws Exception {
 	GtfsRealtimeProducerDemoMain m = new GtfsRealtimeProducerDemoMain();
@@ -85,34 +136,200 @@ public class GtfsRealtimeProducerDemoMain {
 	Injector injector = Guice.createInjector(modules);
 	injector.injectMembers(this);
 
-	if (cli.hasOption(ARG_MONGO_CLIENT) && 
+	if (cli.hasOption(ARG_FEEDS)) {
+	    runFeeds(cli, injector);
+	    return;
+	}
+
+	if (cli.hasOption(ARG_REPLAY_PATH)) {
+	    ReplayUpdateSource source = new ReplayUpdateSource();
+	    source.setPath(new File(cli.getOptionValue(ARG_REPLAY_PATH)));
+	    if (cli.hasOption(ARG_REPLAY_SPEED)) {
+		source.setSpeed(Double.parseDouble(cli.getOptionValue(ARG_REPLAY_SPEED)));
+	    }
+	    _provider.setUpdateSource(source);
+	}
+	else if (cli.hasOption(ARG_MONGO_CLIENT) && 
 	    cli.hasOption(ARG_DATABASE_NAME) &&
 	    cli.hasOption(ARG_COLLECTION_NAME)) {
-	    _provider.setMongo(cli.getOptionValue(ARG_MONGO_CLIENT));
-	    _provider.setDB(cli.getOptionValue(ARG_DATABASE_NAME));
-	    _provider.setColl(cli.getOptionValue(ARG_COLLECTION_NAME));
+	    MongoUpdateSource source = new MongoUpdateSource();
+	    source.setMongo(cli.getOptionValue(ARG_MONGO_CLIENT));
+	    source.setDB(cli.getOptionValue(ARG_DATABASE_NAME));
+	    source.setColl(cli.getOptionValue(ARG_COLLECTION_NAME));
+	    configureMongoSource(cli, source);
+	    _provider.setUpdateSource(source);
 	}
 	else
-	    throw new IllegalArgumentException("Need MongoClient URI, database name, trip updates collection name.");
+	    throw new IllegalArgumentException("Need MongoClient URI, database name, trip updates collection name, or a replay file.");
 
-	if (cli.hasOption(ARG_AGELIM)) {
-	    _provider.setAgeLim(cli.getOptionValue(ARG_AGELIM));
-	}
+	configureProvider(cli, _provider);
 
 	if (cli.hasOption(ARG_UPDATES_URL)) {
-	    URL url = new URL(cli.getOptionValue(ARG_UPDATES_URL));
-	    TripUpdatesServlet servlet = injector.getInstance(TripUpdatesServlet.class);
-	    servlet.setUrl(url);
+	    configureServer(cli, injector);
 	}
 	if (cli.hasOption(ARG_UPDATES_PATH)) {
 	    File path = new File(cli.getOptionValue(ARG_UPDATES_PATH));
-	    TripUpdatesFileWriter writer = injector.getInstance(TripUpdatesFileWriter.class);
+	    FeedFileWriter writer = new FeedFileWriter();
 	    writer.setPath(path);
+	    if (cli.hasOption(ARG_UPDATES_PATH_VERSIONS)) {
+		writer.setVersions(Integer.parseInt(cli.getOptionValue(ARG_UPDATES_PATH_VERSIONS)));
+	    }
+	    _provider.setFileWriter(writer);
+	}
+
+	_lifecycleService.start();
+    }
+
+    /**
+     * Set up one pipeline per --feeds entry, all sharing one Mongo client
+     * and scheduler, and serve each at the updates URL plus its name.
+     */
+    private void runFeeds(CommandLine cli, Injector injector) throws Exception {
+	if (cli.hasOption(ARG_UPDATES_PATH))
+	    throw new IllegalArgumentException("--updatesPath writes a single feed; use --updatesUrl with --feeds.");
+	if (!cli.hasOption(ARG_MONGO_CLIENT))
+	    throw new IllegalArgumentException("Need MongoClient URI.");
+
+	MultiFeedService feeds = injector.getInstance(MultiFeedService.class);
+	feeds.setMongo(cli.getOptionValue(ARG_MONGO_CLIENT));
+
+	for (String feed : cli.getOptionValue(ARG_FEEDS).split(",")) {
+	    // name=collection, or name=db/collection
+	    String[] parts = feed.trim().split("=", 2);
+	    if (parts.length != 2)
+		throw new IllegalArgumentException("Bad feed, expected name=collection: " + feed);
+	    String name = parts[0];
+	    String db = cli.getOptionValue(ARG_DATABASE_NAME);
+	    String coll = parts[1];
+	    int slash = coll.indexOf('/');
+	    if (slash >= 0) {
+		db = coll.substring(0, slash);
+		coll = coll.substring(slash + 1);
+	    }
+	    if (db == null)
+		throw new IllegalArgumentException("Need database name for feed " + name);
+
+	    MongoUpdateSource source = new MongoUpdateSource();
+	    source.setMongoClient(feeds.getMongoClient());
+	    source.setDB(db);
+	    source.setColl(coll);
+	    configureMongoSource(cli, source);
+
+	    GtfsRealtimeProviderImpl provider = new GtfsRealtimeProviderImpl();
+	    provider.setUpdateSource(source);
+	    configureProvider(cli, provider);
+	    if (cli.hasOption(ARG_SNAPSHOT_PATH)) {
+		provider.setSnapshotPath(new File(cli.getOptionValue(ARG_SNAPSHOT_PATH) + "." + name));
+	    }
+	    feeds.addFeed(name, provider);
+	}
+
+	if (cli.hasOption(ARG_UPDATES_URL)) {
+	    UpdatesHttpServer server = configureServer(cli, injector);
+	    for (Map.Entry<String, GtfsRealtimeProviderImpl> feed : feeds.getFeeds().entrySet()) {
+		server.addFeed(feed.getKey(), feed.getValue());
+	    }
 	}
 
 	_lifecycleService.start();
     }
 
+    private UpdatesHttpServer configureServer(CommandLine cli, Injector injector) throws Exception {
+	URL url = new URL(cli.getOptionValue(ARG_UPDATES_URL));
+	UpdatesHttpServer server = injector.getInstance(UpdatesHttpServer.class);
+	server.setUrl(url);
+	if (cli.hasOption(ARG_METRICS_PATH)) {
+	    server.setMetricsPath(cli.getOptionValue(ARG_METRICS_PATH));
+	}
+	if (cli.hasOption(ARG_HTTP_SERVER)) {
+	    server.setServerMode(cli.getOptionValue(ARG_HTTP_SERVER));
+	}
+	if (cli.hasOption(ARG_HTTP_THREADS)) {
+	    server.setThreads(Integer.parseInt(cli.getOptionValue(ARG_HTTP_THREADS)));
+	}
+	return server;
+    }
+
+    private void configureMongoSource(CommandLine cli, MongoUpdateSource source) {
+	if (cli.hasOption(ARG_FETCH_MODE)) {
+	    source.setFetchMode(cli.getOptionValue(ARG_FETCH_MODE));
+	}
+	if (cli.hasOption(ARG_FETCH_THREADS)) {
+	    source.setFetchThreads(Integer.parseInt(cli.getOptionValue(ARG_FETCH_THREADS)));
+	}
+	if (cli.hasOption(ARG_BATCH_SIZE)) {
+	    source.setBatchSize(Integer.parseInt(cli.getOptionValue(ARG_BATCH_SIZE)));
+	}
+	if (cli.hasOption(ARG_READ_PREFERENCE)) {
+	    source.setReadPreference(cli.getOptionValue(ARG_READ_PREFERENCE));
+	}
+	if (cli.hasOption(ARG_CREATE_INDEXES)) {
+	    source.setCreateIndexes(true);
+	}
+    }
+
+    private void configureProvider(CommandLine cli, GtfsRealtimeProviderImpl provider) {
+	if (cli.hasOption(ARG_AGELIM)) {
+	    provider.setAgeLim(cli.getOptionValue(ARG_AGELIM));
+	}
+
+	if (cli.hasOption(ARG_INCREMENTAL)) {
+	    provider.setIncremental(true);
+	}
+
+	if (cli.hasOption(ARG_OVERLAP)) {
+	    provider.setOverlap(cli.getOptionValue(ARG_OVERLAP));
+	}
+
+	if (cli.hasOption(ARG_STREAMING)) {
+	    provider.setStreaming(true);
+	}
+
+	if (cli.hasOption(ARG_PUBLISH_DEBOUNCE)) {
+	    provider.setPublishDebounce(cli.getOptionValue(ARG_PUBLISH_DEBOUNCE));
+	}
+
+	if (cli.hasOption(ARG_DIFFERENTIAL_HISTORY)) {
+	    provider.setDifferentialHistory(Integer.parseInt(cli.getOptionValue(ARG_DIFFERENTIAL_HISTORY)));
+	}
+
+	if (cli.hasOption(ARG_MAX_STOPS_PER_TRIP)) {
+	    provider.setMaxStopsPerTrip(Integer.parseInt(cli.getOptionValue(ARG_MAX_STOPS_PER_TRIP)));
+	}
+
+	if (cli.hasOption(ARG_REFRESH_INTERVAL)) {
+	    provider.setRefreshInterval(Integer.parseInt(cli.getOptionValue(ARG_REFRESH_INTERVAL)));
+	}
+
+	if (cli.hasOption(ARG_MIN_REFRESH_INTERVAL)) {
+	    provider.setMinRefreshInterval(Integer.parseInt(cli.getOptionValue(ARG_MIN_REFRESH_INTERVAL)));
+	}
+
+	if (cli.hasOption(ARG_MAX_REFRESH_INTERVAL)) {
+	    provider.setMaxRefreshInterval(Integer.parseInt(cli.getOptionValue(ARG_MAX_REFRESH_INTERVAL)));
+	}
+
+	if (cli.hasOption(ARG_BUS_LIST_INTERVAL)) {
+	    provider.setBusListInterval(Integer.parseInt(cli.getOptionValue(ARG_BUS_LIST_INTERVAL)));
+	}
+
+	if (cli.hasOption(ARG_SNAPSHOT_PATH)) {
+	    provider.setSnapshotPath(new File(cli.getOptionValue(ARG_SNAPSHOT_PATH)));
+	}
+
+	if (cli.hasOption(ARG_SNAPSHOT_INTERVAL)) {
+	    provider.setSnapshotInterval(Integer.parseInt(cli.getOptionValue(ARG_SNAPSHOT_INTERVAL)));
+	}
+
+	if (cli.hasOption(ARG_FILTERED_VIEWS)) {
+	    provider.setFilteredViews(true);
+	}
+
+	if (cli.hasOption(ARG_TRIPS_PATH)) {
+	    provider.setTripsPath(new File(cli.getOptionValue(ARG_TRIPS_PATH)));
+	}
+    }
+
     private void printUsage() {
 	CommandLineInterfaceLibrary.printUsage(getClass());
     }
@@ -124,5 +341,31 @@ public class GtfsRealtimeProducerDemoMain {
 	options.addOption(ARG_DATABASE_NAME, true, "database name");
 	options.addOption(ARG_COLLECTION_NAME, true, "trip updates collection name");
 	options.addOption(ARG_AGELIM, true, "age limit for removal, in ms");
+	options.addOption(ARG_FETCH_MODE, true, "update fetch mode: aggregate (default) or perBus");
+	options.addOption(ARG_INCREMENTAL, false, "only query departures newer than the last refresh");
+	options.addOption(ARG_OVERLAP, true, "overlap window for incremental queries, in ms");
+	options.addOption(ARG_STREAMING, false, "tail the (capped) collection instead of polling");
+	options.addOption(ARG_PUBLISH_DEBOUNCE, true, "minimum delay between republishes while streaming, in ms");
+	options.addOption(ARG_DIFFERENTIAL_HISTORY, true, "number of feed versions kept for differential clients");
+	options.addOption(ARG_MAX_STOPS_PER_TRIP, true, "most stop time updates published per trip");
+	options.addOption(ARG_FETCH_THREADS, true, "threads running per-bus queries in parallel");
+	options.addOption(ARG_METRICS_PATH, true, "path for Prometheus metrics next to the updates url");
+	options.addOption(ARG_REFRESH_INTERVAL, true, "trip update refresh interval, in seconds");
+	options.addOption(ARG_MIN_REFRESH_INTERVAL, true, "shortest adaptive refresh interval, in seconds");
+	options.addOption(ARG_MAX_REFRESH_INTERVAL, true, "longest adaptive refresh interval, in seconds");
+	options.addOption(ARG_BUS_LIST_INTERVAL, true, "bus list refresh interval, in seconds");
+	options.addOption(ARG_SNAPSHOT_PATH, true, "file to save vehicle state to and restore it from");
+	options.addOption(ARG_SNAPSHOT_INTERVAL, true, "how often vehicle state is saved, in seconds");
+	options.addOption(ARG_REPLAY_PATH, true, "NDJSON or BSON file of departures to replay instead of MongoDB");
+	options.addOption(ARG_REPLAY_SPEED, true, "replay speed multiplier, 0 for as fast as possible");
+	options.addOption(ARG_BATCH_SIZE, true, "documents per Mongo cursor batch");
+	options.addOption(ARG_READ_PREFERENCE, true, "Mongo read preference, e.g. secondaryPreferred");
+	options.addOption(ARG_CREATE_INDEXES, false, "create missing Mongo indexes at startup");
+	options.addOption(ARG_FEEDS, true, "named feeds to serve from one process: name=collection,...");
+	options.addOption(ARG_HTTP_SERVER, true, "http server: jdk (default) or nio");
+	options.addOption(ARG_HTTP_THREADS, true, "http request threads, or event loops for nio");
+	options.addOption(ARG_UPDATES_PATH_VERSIONS, true, "number of changed feeds kept as updatesPath.timestamp");
+	options.addOption(ARG_FILTERED_VIEWS, false, "serve feeds filtered by ?stop=, ?trip= or ?route=");
+	options.addOption(ARG_TRIPS_PATH, true, "GTFS trips.txt mapping trips to routes, for ?route=");
     }
 }
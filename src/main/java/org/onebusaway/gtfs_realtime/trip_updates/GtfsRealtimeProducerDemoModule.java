@@ -37,6 +37,8 @@ public class GtfsRealtimeProducerDemoModule extends AbstractModule {
     // bind(GtfsRealtimeProviderImpl.class);
     // bind(GtfsRealtimeProvider.class).to(GtfsRealtimeProviderImpl.class);
       bind(GtfsRealtimeProviderImpl.class);
+      bind(UpdatesHttpServer.class);
+      bind(MultiFeedService.class);
   }
 
   /**
@@ -17,21 +17,29 @@ package org.onebusaway.gtfs_realtime.trip_updates;
 
 import java.lang.Object;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
 import java.rmi.UnknownHostException;
 import java.lang.IllegalArgumentException;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.apache.commons.codec.binary.Hex;
@@ -41,7 +49,6 @@ import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.onebusway.gtfs_realtime.exporter.GtfsRealtimeExporterModule;
 import org.onebusway.gtfs_realtime.exporter.GtfsRealtimeProvider;
-import org.onebusway.gtfs_realtime.exporter.GtfsRealtimeMutableProvider;
 import org.onebusway.gtfs_realtime.exporter.GtfsRealtimeLibrary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,22 +56,11 @@ import org.slf4j.LoggerFactory;
 import com.google.transit.realtime.GtfsRealtime.EntitySelector;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
 import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
 import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
 import com.google.transit.realtime.GtfsRealtime.Position;
 
-
-import com.mongodb.MongoClient;
-import com.mongodb.MongoClientURI;
-import com.mongodb.MongoException;
-import com.mongodb.WriteConcern;
-import com.mongodb.DB;
-import com.mongodb.DBCollection;
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
-import com.mongodb.DBCursor;
-import com.mongodb.ServerAddress;
-
 /**
  * This class produces GTFS-realtime alerts by periodically polling the custom
  * SEPTA alerts API and converting the resulting alert data into the
@@ -80,8 +76,9 @@ import com.mongodb.ServerAddress;
  */
 
 /**
- * Former description now out of date! Now the class periodically polls a 
- * MongoDB of bus updates and converts that data into GTFS-realtime format.
+ * Former description now out of date! Now the class periodically polls an
+ * {@link UpdateSource} (normally a MongoDB of bus updates) and converts that
+ * data into GTFS-realtime format.
  *
  * @auther Jacob Lynn
  */
@@ -93,13 +90,32 @@ public class GtfsRealtimeProviderImpl {
 
   private ScheduledExecutorService _executor;
 
-  // private volatile FeedMessage _updates = GtfsRealtimeLibrary.createFeedMessageBuilder().build();
+  private ScheduledExecutorService _busListExecutor;
+
+  /**
+   * Whether _executor was handed in and is shared with other feeds, in
+   * which case stop() cancels this feed's tasks instead of shutting it down.
+   */
+  private boolean _sharedExecutor = false;
+
+  /**
+   * Recurring tasks on _executor, cancelled by stop().
+   */
+  private final List<Future<?>> _tasks = new ArrayList<Future<?>>();
+
+  private volatile Future<?> _refreshFuture;
 
-  private GtfsRealtimeMutableProvider _gtfsRealtimeProvider;
+  private volatile boolean _stopped = false;
+
+  // private volatile FeedMessage _updates = GtfsRealtimeLibrary.createFeedMessageBuilder().build();
 
   private URL _url;
 
-  private long _currtime = 1365614681000L;
+  /**
+   * High-water mark: latest departure time seen so far, in ms. Zero until the
+   * first refresh has completed.
+   */
+  private volatile long _currtime = 0L;
 
   /**
    * How often alerts will be downloaded, in seconds.
@@ -111,38 +127,315 @@ public class GtfsRealtimeProviderImpl {
    */
   private int _busListInterval = 8*60;
 
+  /**
+   * Bounds on the adaptive refresh interval, in seconds. Both default to
+   * _refreshInterval, which keeps the interval fixed.
+   */
+  private int _minRefreshInterval = -1;
+  private int _maxRefreshInterval = -1;
+
+  /**
+   * Current refresh interval, in ms.
+   */
+  private long _currentInterval;
+
+  /**
+   * When the bus list was last refreshed, in ms. Zero before the first
+   * refresh.
+   */
+  private long _lastBusListTime = 0L;
+
+  /**
+   * File the vehicle state is saved to and restored from, or null.
+   */
+  private File _snapshotPath;
+
+  /**
+   * How often the vehicle state is saved, in seconds.
+   */
+  private int _snapshotInterval = 60;
+
   /**
    * Age above which updates will be removed from list, in ms.
    */
   private long _ageLim = 10*60*1000;
 
-  @Inject
-  public void setGtfsRealtimeProvider(GtfsRealtimeMutableProvider gtfsRealtimeProvider) {
-    _gtfsRealtimeProvider = gtfsRealtimeProvider;
+  /**
+   * Whether refreshes after the first only query departures newer than the
+   * high-water mark.
+   */
+  private boolean _incremental = false;
+
+  /**
+   * How far behind the high-water mark incremental queries start, in ms, so
+   * that late writes are still picked up.
+   */
+  private long _overlap = 60*1000;
+
+  /**
+   * Whether updates are streamed from the source as they arrive instead of
+   * being polled every _refreshInterval seconds.
+   */
+  private boolean _streaming = false;
+
+  /**
+   * Minimum delay between feed republishes while streaming, in ms.
+   */
+  private long _publishDebounce = 1000;
+
+  /**
+   * Set by the tailing thread when updateList has changed since the last
+   * publish.
+   */
+  private final AtomicBoolean _dirty = new AtomicBoolean(false);
+
+  /**
+   * When the feed was last published, in ms.
+   */
+  private volatile long _lastPublish = 0L;
+
+  /**
+   * Number of feed deltas kept for differential clients; 0 disables
+   * differential feeds.
+   */
+  private int _differentialHistory = 0;
+
+  private volatile DifferentialFeedHistory _feedHistory;
+
+  /**
+   * Incremented on every publish.
+   */
+  private long _feedVersion = 0L;
+
+  private ExecutorService _tailExecutor;
+
+  private UpdateSource _source;
+
+  private UpdateStore updateList = new UpdateList();
+
+  /**
+   * Writes changed feeds to a file, or null.
+   */
+  private FeedFileWriter _fileWriter;
+
+  /**
+   * Stop, trip and route indexes over updateList, or null if filtered views
+   * are disabled.
+   */
+  private UpdateIndex _index;
+
+  /**
+   * GTFS trips.txt giving each trip's route, or null.
+   */
+  private File _tripsPath;
+
+  private volatile boolean _routesLoaded = false;
+
+  /**
+   * Filtered views by index key. A view is replaced only when its key
+   * changes, so its encoded feed is reused until then.
+   */
+  private final ConcurrentHashMap<String, FeedView> _views =
+      new ConcurrentHashMap<String, FeedView>();
+
+  private volatile FeedView _emptyView = new FeedView(
+      Collections.<Update>emptyList(), 0L);
+
+  private int _maxStopsPerTrip = 1;
+
+  private final RefreshMetrics _metrics = new RefreshMetrics();
+
+  /**
+   * The last published feed and the vehicles it was built from. Replaced
+   * as a whole on every publish; readers never touch updateList.
+   */
+  private final AtomicReference<UpdateSnapshot> _snapshot =
+      new AtomicReference<UpdateSnapshot>(UpdateSnapshot.empty(
+          GtfsRealtimeLibrary.createFeedMessageBuilder().build()));
+
+  /**
+   * @param source where departures are read from.
+   */
+  public void setUpdateSource(UpdateSource source) {
+    _source = source;
+    _source.setMetrics(_metrics);
+  }
+  public void setAgeLim(String ageLim) {
+    _ageLim = Integer.parseInt(ageLim);
   }
 
-  private MongoClient _client;
-  private DB _db;
-  private DBCollection _coll;
+  /**
+   * @param incremental if true, only departures newer than the high-water mark
+   *          (less the overlap window) are queried after the first refresh.
+   */
+  public void setIncremental(boolean incremental) {
+    _incremental = incremental;
+  }
 
-  private UpdateList updateList = new UpdateList();
+  /**
+   * @param overlap overlap window for incremental queries, in ms.
+   */
+  public void setOverlap(String overlap) {
+    _overlap = Long.parseLong(overlap);
+  }
 
   /**
-   * @param url is a string pointing to our MongoDB (w/ authentication)
+   * @param streaming if true, tail the source for new departures rather
+   *          than polling it.
    */
-  public void setMongo(String url) throws IOException {
-    MongoClientURI uri = new MongoClientURI(url);
-    System.out.println(uri);
-    _client = new MongoClient(uri);
+  public void setStreaming(boolean streaming) {
+    _streaming = streaming;
   }
-  public void setDB(String db) {
-    _db = _client.getDB(db);
+
+  /**
+   * @param publishDebounce minimum delay between republishes while streaming,
+   *          in ms.
+   */
+  public void setPublishDebounce(String publishDebounce) {
+    _publishDebounce = Long.parseLong(publishDebounce);
   }
-  public void setColl(String coll) {
-    _coll = _db.getCollection(coll);
+
+  /**
+   * @param snapshotPath file the vehicle state is saved to periodically and
+   *          restored from at startup.
+   */
+  public void setSnapshotPath(File snapshotPath) {
+    _snapshotPath = snapshotPath;
   }
-  public void setAgeLim(String ageLim) {
-    _ageLim = Integer.parseInt(ageLim);
+
+  /**
+   * @param snapshotInterval how often the vehicle state is saved, in seconds.
+   */
+  public void setSnapshotInterval(int snapshotInterval) {
+    _snapshotInterval = snapshotInterval;
+  }
+
+  /**
+   * @param filteredViews if true, index vehicles by stop, trip and route and
+   *          serve feeds filtered by them.
+   */
+  public void setFilteredViews(boolean filteredViews) {
+    _index = filteredViews ? new UpdateIndex() : null;
+  }
+
+  /**
+   * @param tripsPath GTFS trips.txt mapping trips to routes, for route views.
+   */
+  public void setTripsPath(File tripsPath) {
+    _tripsPath = tripsPath;
+  }
+
+  /**
+   * @param fileWriter writer each published feed is offered to.
+   */
+  public void setFileWriter(FeedFileWriter fileWriter) {
+    _fileWriter = fileWriter;
+  }
+
+  /**
+   * @param maxStops most StopTimeUpdates to publish per trip.
+   */
+  public void setMaxStopsPerTrip(int maxStops) {
+    _maxStopsPerTrip = maxStops;
+  }
+
+  /**
+   * @param differentialHistory number of published versions differential
+   *          clients may lag behind; 0 disables differential feeds.
+   */
+  public void setDifferentialHistory(int differentialHistory) {
+    _differentialHistory = differentialHistory;
+  }
+
+  /**
+   * @param executor scheduler shared with other feeds. Refreshes, bus list
+   *          refreshes, publishes and snapshots all run on it.
+   */
+  public void setExecutor(ScheduledExecutorService executor) {
+    _executor = executor;
+    _sharedExecutor = true;
+  }
+
+  /**
+   * @return the most tasks this feed can keep on its scheduler once started:
+   *         the refresh or, when streaming, the publish; bus list discovery
+   *         for per-bus sources; and snapshots. Any of them can block on
+   *         Mongo or the disk, so a shared scheduler needs a thread for each.
+   *         Worked out from the configuration alone, before the source is
+   *         opened; a streaming feed counts discovery too, in case it falls
+   *         back to polling.
+   */
+  int getScheduledTaskCount() {
+    if (_source == null) {
+      return 0;
+    }
+    int tasks = 1;
+    if (_source.requiresVehicleIds()) {
+      tasks++;
+    }
+    if (_snapshotPath != null) {
+      tasks++;
+    }
+    return tasks;
+  }
+
+  /**
+   * @return metrics describing the refresh pipeline.
+   */
+  public RefreshMetrics getMetrics() {
+    return _metrics;
+  }
+
+  /**
+   * @return the last published snapshot of the feed.
+   */
+  public UpdateSnapshot getSnapshot() {
+    return _snapshot.get();
+  }
+
+  /**
+   * @return the last published trip updates feed, already encoded.
+   */
+  public EncodedFeed getEncodedFeed() {
+    return _snapshot.get().getEncodedFeed();
+  }
+
+  /**
+   * @param type {@link UpdateIndex#STOP}, {@link UpdateIndex#TRIP} or
+   *          {@link UpdateIndex#ROUTE}.
+   * @return a feed of the vehicles indexed under the given ID as of the last
+   *         publish, or null if filtered views are disabled or routes are
+   *         unknown. It is encoded once and reused until the ID's vehicles
+   *         change.
+   */
+  public EncodedFeed getFilteredFeed(String type, String id) {
+    if (_index == null || (type.equals(UpdateIndex.ROUTE) && !_routesLoaded)) {
+      return null;
+    }
+    FeedView view = _views.get(UpdateIndex.key(type, id));
+    if (view == null) {
+      view = _emptyView;
+    }
+    return view.getEncodedFeed();
+  }
+
+  /**
+   * @param since feed version the client already holds.
+   * @return a DIFFERENTIAL feed carrying only the changes since that version,
+   *         or the full feed if differential feeds are disabled or the
+   *         version is too old.
+   */
+  public EncodedFeed getEncodedFeedSince(long since) {
+    EncodedFeed current = getEncodedFeed();
+    DifferentialFeedHistory history = _feedHistory;
+    if (history == null) {
+      return current;
+    }
+    // The snapshot is replaced before the history catches up, so the
+    // history may briefly lag a version behind; never serve older data.
+    EncodedFeed feed = history.getFeedSince(since);
+    return feed != null && feed.getVersion() >= current.getVersion() ? feed
+        : current;
   }
 
   /**
@@ -152,6 +445,30 @@ public class GtfsRealtimeProviderImpl {
     _refreshInterval = refreshInterval;
   }
 
+  /**
+   * @param busListInterval how often the bus list will be downloaded, in
+   *          seconds.
+   */
+  public void setBusListInterval(int busListInterval) {
+    _busListInterval = busListInterval;
+  }
+
+  /**
+   * @param minRefreshInterval shortest interval the adaptive scheduler may
+   *          use, in seconds.
+   */
+  public void setMinRefreshInterval(int minRefreshInterval) {
+    _minRefreshInterval = minRefreshInterval;
+  }
+
+  /**
+   * @param maxRefreshInterval longest interval the adaptive scheduler may
+   *          use, in seconds.
+   */
+  public void setMaxRefreshInterval(int maxRefreshInterval) {
+    _maxRefreshInterval = maxRefreshInterval;
+  }
+
   /**
    * The start method automatically starts up a recurring task that periodically
    * downloads the latest alerts from the SEPTA alerts stream and processes
@@ -159,12 +476,105 @@ public class GtfsRealtimeProviderImpl {
    */
   @PostConstruct
   public void start() {
-    _executor = Executors.newSingleThreadScheduledExecutor();
+    if (_source == null) {
+      // Not configured, e.g. the default provider when serving named feeds.
+      return;
+    }
+    if (_executor == null) {
+      _executor = Executors.newSingleThreadScheduledExecutor();
+    }
     _log.info("starting GTFS-realtime service");
-    _executor.scheduleAtFixedRate(new BusListRefreshTask(), 0, _busListInterval,
-        TimeUnit.SECONDS);
-    _executor.scheduleAtFixedRate(new UpdateRefreshTask(), 0, _refreshInterval,
-        TimeUnit.SECONDS);
+
+    updateList.setMaxStopsPerTrip(_maxStopsPerTrip);
+    if (_index != null) {
+      if (_tripsPath != null) {
+        try {
+          _index.setRoutes(UpdateIndex.readRoutes(_tripsPath));
+          _routesLoaded = _index.hasRoutes();
+        } catch (IOException ex) {
+          _log.warn("could not read routes from " + _tripsPath, ex);
+        }
+      }
+      updateList.setIndex(_index);
+    }
+
+    try {
+      _source.open();
+    } catch (IOException ex) {
+      _log.warn("Error opening update source", ex);
+    }
+
+    if (_differentialHistory > 0) {
+      _feedHistory = new DifferentialFeedHistory(_differentialHistory);
+    }
+
+    if (_minRefreshInterval < 0 || _minRefreshInterval > _refreshInterval) {
+      _minRefreshInterval = _refreshInterval;
+    }
+    if (_maxRefreshInterval < _refreshInterval) {
+      _maxRefreshInterval = _refreshInterval;
+    }
+    _currentInterval = _refreshInterval * 1000L;
+    _metrics.setRefreshInterval(_currentInterval);
+
+    if (_snapshotPath != null) {
+      restoreSnapshot();
+      _tasks.add(_executor.scheduleWithFixedDelay(new SnapshotTask(),
+          _snapshotInterval, _snapshotInterval, TimeUnit.SECONDS));
+    }
+
+    if (_streaming && !_source.canTail()) {
+      _log.warn("update source cannot be tailed; falling back to polling");
+      _streaming = false;
+    }
+
+    if (_streaming) {
+      _tailExecutor = Executors.newSingleThreadExecutor();
+      _tailExecutor.execute(new UpdateTailTask());
+      _tasks.add(_executor.scheduleWithFixedDelay(new PublishTask(),
+          _publishDebounce, _publishDebounce, TimeUnit.MILLISECONDS));
+      return;
+    }
+
+    // Only per-bus fetches need the bus list. Discovery gets its own thread
+    // so a slow distinct never delays trip updates; a shared scheduler is
+    // sized from getScheduledTaskCount() and has a thread for it already.
+    if (_source.requiresVehicleIds()) {
+      if (_sharedExecutor) {
+        _busListExecutor = _executor;
+      } else {
+        _busListExecutor = Executors.newSingleThreadScheduledExecutor();
+      }
+      // A per-bus refresh before the first discovery would find no buses
+      // and publish an empty feed, so the first refresh follows it.
+      _busListExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          refreshBusList();
+          scheduleRefresh(0);
+        }
+      });
+      _tasks.add(_busListExecutor.scheduleWithFixedDelay(
+          new BusListRefreshTask(), _busListInterval, _busListInterval,
+          TimeUnit.SECONDS));
+    } else {
+      scheduleRefresh(0);
+    }
+  }
+
+  /**
+   * Schedule the next refresh cycle, unless the service is stopping.
+   */
+  private void scheduleRefresh(long delayMillis) {
+    if (_stopped) {
+      return;
+    }
+    try {
+      _refreshFuture = _executor.schedule(new UpdateRefreshTask(),
+          delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException ex) {
+      // shutting down
+    }
   }
 
   /**
@@ -172,8 +582,32 @@ public class GtfsRealtimeProviderImpl {
    */
   @PreDestroy
   public void stop() {
+    if (_source == null) {
+      return;
+    }
     _log.info("stopping GTFS-realtime service");
-    _executor.shutdownNow();
+    _stopped = true;
+    if (_sharedExecutor) {
+      for (Future<?> task : _tasks) {
+        task.cancel(true);
+      }
+      Future<?> refresh = _refreshFuture;
+      if (refresh != null) {
+        refresh.cancel(true);
+      }
+    } else {
+      _executor.shutdownNow();
+      if (_busListExecutor != null) {
+        _busListExecutor.shutdownNow();
+      }
+    }
+    if (_snapshotPath != null) {
+      saveSnapshot();
+    }
+    if (_tailExecutor != null) {
+      _tailExecutor.shutdownNow();
+    }
+    _source.close();
   }
 
 
@@ -215,84 +649,250 @@ public class GtfsRealtimeProviderImpl {
   /**
    * This method downloads the latest alerts, processes each alert in turn, and
    * create a GTFS-realtime feed of alerts as a result.
+   *
+   * @return the number of vehicles whose update changed.
    */
-  private void refreshUpdates() throws IOException {
+  int refreshUpdates() throws IOException {
 
-    /**
-     * We download the updates as an array of DBObjects.
-     */
-    ArrayList<DBObject> dbList = downloadUpdates();
+    long cycleStart = System.nanoTime();
 
     /**
-     * We iterate over every DBObject returned by the MongoDB query,
-     * turn them into a Update, and add them to updateList (though
-     * addUpdate() only adds a Update to the list if it is actually
+     * We download the updates from the source, and add them to updateList
+     * (though addUpdate() only adds a Update to the list if it is actually
      * new).
      */
-    for (int i = 0; i < dbList.size(); ++i) {
-      DBObject obj = dbList.get(i);
-      Update newUpdate = new Update(obj);
-      updateList.addUpdate(newUpdate);
+    List<Update> newUpdates = downloadUpdates();
+    _metrics.getDocumentsRead().observe(newUpdates.size());
+
+    long start = System.nanoTime();
+    int changed = 0;
+    synchronized (updateList) {
+      for (Update newUpdate : newUpdates) {
+        if (updateList.addUpdate(newUpdate)) {
+          changed++;
+        }
+      }
     }
+    _metrics.getMergeTime().observeSince(start);
 
-    _log.info("clearing updates older than " + _ageLim/60/1000 + " minutes");
-    updateList.clearOld(_ageLim);
+    publishUpdates();
+    _metrics.getCycleTime().observeSince(cycleStart);
+    return changed;
+  }
 
-    /**
-     * Build out the final GTFS-realtime feed message and save it to the alerts
-     * field.
-     */
-    // _updates = updateList.getUpdateFeedMessage();
-    _gtfsRealtimeProvider.setTripUpdates(updateList.getUpdateFeedMessage());
-    _log.info("updates extracted: " + updateList.getCount());
+  /**
+   * Pick the next refresh interval from the last cycle. The interval backs
+   * off when nothing changed and tightens when at least a tenth of the fleet
+   * changed. It never drops below twice the cycle duration, so the source is
+   * busy at most half the time, and it stays within the configured bounds.
+   *
+   * @param changed vehicles updated by the last cycle, or -1 if it failed.
+   * @param duration how long the last cycle took, in ms.
+   * @return the next refresh interval, in ms.
+   */
+  private long adaptInterval(int changed, long duration) {
+    long interval = _currentInterval;
+    if (changed == 0) {
+      interval = interval * 3 / 2;
+    } else if (changed > 0 && changed * 10 >= updateList.getCount()) {
+      interval = interval * 2 / 3;
+    }
+    interval = Math.max(interval, 2 * duration);
+    interval = Math.max(interval, _minRefreshInterval * 1000L);
+    interval = Math.min(interval, _maxRefreshInterval * 1000L);
 
-    /* Update current time for subsequent queries: */
-    _currtime = updateList.maxTime();
+    if (interval != _currentInterval) {
+      _log.info("refresh interval now " + interval + " ms");
+      _currentInterval = interval;
+      _metrics.setRefreshInterval(interval);
+    }
+    return interval;
   }
 
   /**
-   * @return a DBObject array of recent entries in MongoDB collection.
+   * Expire old updates, then build the GTFS-realtime feed from updateList,
+   * publish it and write it to the feed file if it changed.
    */
-  private ArrayList<DBObject> downloadUpdates() throws IOException {
-    // get list of distinct bus ids:
-    // _log.info("getting distinct bus IDs");
-    // List busIDs = _locationsColl.distinct("entity.id");
-    // _log.info("success: bus IDs");
-    // System.out.println(busIDs);
+  private void publishUpdates() {
+    synchronized (updateList) {
+      _log.info("clearing updates older than " + _ageLim/60/1000 + " minutes");
+      _metrics.recordExpired(updateList.clearOld(_ageLim));
+      updateList.clearInactive(_ageLim);
 
-    ArrayList<DBObject> myList = new ArrayList<DBObject>();
-    ArrayList<Object> busIDs = updateList.getBusIDs();
+      /**
+       * Build out the final GTFS-realtime feed message and save it to the alerts
+       * field.
+       */
+      // _updates = updateList.getUpdateFeedMessage();
+      long start = System.nanoTime();
+      FeedHeader header = GtfsRealtimeLibrary.createFeedMessageBuilder()
+          .getHeader();
+      List<FeedEntity> entities = updateList.getFeedEntities();
+      _metrics.getFeedBuildTime().observeSince(start);
 
-    // Loop over bus ids; get most recent timestamp for each
-    for (Object busID : busIDs) {
-      List<BasicDBObject> queryList = new ArrayList<BasicDBObject>();
+      // The entities are streamed into the encoded feed; no FeedMessage is
+      // built.
+      start = System.nanoTime();
+      EncodedFeed encoded = EncodedFeed.encode(header, entities,
+          ++_feedVersion);
+      _metrics.getSerializeTime().observeSince(start);
+      _metrics.getFeedBytes().observe(encoded.getLength());
 
-      // match on bus ID:
-      queryList.add(new BasicDBObject("device_id",busID.toString()));
+      UpdateSnapshot snapshot = new UpdateSnapshot(
+          updateList.getUpdatesById(), encoded);
+      _snapshot.set(snapshot);
+      if (_feedHistory != null) {
+        _feedHistory.publish(snapshot);
+      }
+      if (_index != null) {
+        updateViews(snapshot);
+      }
+      _log.info("updates extracted: " + updateList.getCount());
 
-      // look for departures only:
-      queryList.add(new BasicDBObject("type", 1));
+      /* Update current time for subsequent queries: */
+      _currtime = Math.max(_currtime, updateList.maxTime());
+      _lastPublish = System.currentTimeMillis();
+      _metrics.recordPublish(updateList.getCount(), _lastPublish);
+    }
 
-      // build full query
-      BasicDBObject query = new BasicDBObject("$and", queryList);
+    // Written outside the lock so a slow disk never holds up refreshes.
+    if (_fileWriter != null) {
+      try {
+        _fileWriter.write(_snapshot.get().getEncodedFeed());
+      } catch (IOException ex) {
+        _log.warn("could not write feed file", ex);
+      }
+    }
+  }
 
-      _log.info("query on busID " + busID.toString());
-      DBCursor cursor2 = _coll.find(query)
-          .sort( new BasicDBObject("time", -1))
-          .limit(1);
+  /**
+   * Replace the views of index keys that changed since the last publish.
+   * Views of other keys, and their encoded feeds, are kept.
+   */
+  private void updateViews(UpdateSnapshot snapshot) {
+    Map<String, Update> vehicles = snapshot.getVehicles();
+    for (String key : _index.drainChanged()) {
+      List<String> ids = _index.getVehicleIds(key);
+      if (ids.isEmpty()) {
+        _views.remove(key);
+        continue;
+      }
+      List<Update> updates = new ArrayList<Update>(ids.size());
+      for (String id : ids) {
+        Update update = vehicles.get(id);
+        if (update != null) {
+          updates.add(update);
+        }
+      }
+      _views.put(key, new FeedView(updates, snapshot.getVersion()));
+    }
+    _emptyView = new FeedView(Collections.<Update>emptyList(),
+        snapshot.getVersion());
+  }
 
-      try {
-        while (cursor2.hasNext()) {
-          DBObject myDoc = cursor2.next();
-          myList.add(myDoc);
+  /**
+   * Load the saved vehicle state, if any, and publish it right away. The
+   * high-water mark is restored too, so incremental refreshes resume from
+   * where the previous run stopped.
+   */
+  private void restoreSnapshot() {
+    if (!_snapshotPath.exists()) {
+      return;
+    }
+    try {
+      long start = System.currentTimeMillis();
+      UpdateSnapshotFile.Contents contents = UpdateSnapshotFile.read(
+          _snapshotPath);
+      synchronized (updateList) {
+        for (Update update : contents.getUpdates()) {
+          updateList.addUpdate(update);
         }
-      } finally {
-        cursor2.close();
+        _currtime = Math.max(_currtime, contents.getHighWaterMark());
       }
+      publishUpdates();
+      _log.info("restored " + contents.getUpdates().size() + " updates from "
+          + _snapshotPath + " in " + (System.currentTimeMillis() - start)
+          + " ms");
+    } catch (IOException ex) {
+      _log.warn("could not restore snapshot from " + _snapshotPath, ex);
+    }
+  }
+
+  /**
+   * Save the last published vehicle state and the high-water mark.
+   */
+  private void saveSnapshot() {
+    try {
+      UpdateSnapshotFile.write(_snapshotPath, _currtime,
+          _snapshot.get().getVehicles().values());
+    } catch (IOException ex) {
+      _log.warn("could not save snapshot to " + _snapshotPath, ex);
+    }
+  }
 
+  /**
+   * Tail the source for departures newer than the high-water mark and apply
+   * each one to updateList as it arrives. Returns when the source runs dry,
+   * so the caller can call it again.
+   */
+  private void tailUpdates() throws IOException, InterruptedException {
+    long since = _currtime > 0 ? _currtime - _overlap
+        : System.currentTimeMillis() - _ageLim;
+
+    _source.tailUpdates(since, new UpdateSource.UpdateHandler() {
+      @Override
+      public void handleUpdate(Update newUpdate) {
+        _metrics.recordTailed();
+        synchronized (updateList) {
+          updateList.addUpdate(newUpdate);
+          _currtime = Math.max(_currtime, newUpdate.getDepTime());
+        }
+        _dirty.set(true);
+      }
+    });
+  }
+
+  /**
+   * @return the most recent departure of each bus, or only the departures
+   *         since the high-water mark when incremental.
+   */
+  private List<Update> downloadUpdates() throws IOException {
+    if (_incremental && _currtime > 0) {
+      return _source.getUpdatesSince(_currtime - _overlap);
     }
+    return _source.getLatestUpdates(updateList.getBusIDs(),
+        System.currentTimeMillis() - _ageLim);
+  }
+
+  /**
+   * Fetch the IDs of buses that departed since the previous discovery (or
+   * within the age limit, the first time), so the distinct touches a recent
+   * slice of the collection rather than its whole history. Discovery only
+   * adds new buses; a listed bus stays active only while its departures keep
+   * arriving, so buses that stop reporting age out.
+   */
+  void refreshBusList() {
+    try {
+      long now = System.currentTimeMillis();
+      long since = _lastBusListTime > 0 ? _lastBusListTime - _overlap
+          : now - _ageLim;
+
+      // get list of distinct bus ids:
+      _log.info("getting bus IDs active since " + since);
+      List<String> busIDs = _source.getVehicleIdsSince(since);
 
-    return myList;
+      synchronized (updateList) {
+        for (String busID : busIDs) {
+          updateList.addDiscoveredBus(busID, now);
+        }
+        updateList.clearInactive(_ageLim);
+      }
+      _lastBusListTime = now;
+      _log.info("success: " + busIDs.size() + " recent, "
+          + updateList.getBusIDs().size() + " active bus IDs");
+    } catch (Exception ex) {
+      _log.warn("Error in bus ID refresh task", ex);
+    }
   }
 
   // /**
@@ -341,46 +941,138 @@ public class GtfsRealtimeProviderImpl {
    */
   private class UpdateRefreshTask implements Runnable {
 
+    /**
+     * Each run schedules the next one, so cycles never overlap or queue up.
+     * When a cycle overruns the interval, the slots it missed are skipped
+     * rather than run back to back.
+     */
     @Override
     public void run() {
+      long start = System.currentTimeMillis();
+      int changed = -1;
       try {
         _log.info("refreshing trip updates");
-        refreshUpdates();
+        changed = refreshUpdates();
       } catch (Exception ex) {
         _log.warn("Error in trip update refresh task", ex);
       }
+
+      long duration = System.currentTimeMillis() - start;
+      long interval = adaptInterval(changed, duration);
+      if (duration > interval) {
+        _log.warn("refresh took " + duration + " ms, longer than the "
+            + interval + " ms interval; skipping missed cycles");
+      }
+      scheduleRefresh(interval - (duration % interval));
     }
   }
 
   /**
-   * Task that will download bus IDs from the remote data source when
-   * executed.
+   * Task that keeps tailing the source, starting over whenever it runs dry,
+   * until the executor is shut down.
    */
-  private class BusListRefreshTask implements Runnable {
+  private class UpdateTailTask implements Runnable {
 
     @Override
     public void run() {
-      try {
-        // get list of distinct bus ids:
-        _log.info("getting distinct bus IDs");
-        List<Object> busIDs = _coll.distinct("device_id");
-        _log.info("success: bus IDs");
-        System.out.println(busIDs);
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          tailUpdates();
+          Thread.sleep(_publishDebounce);
+        } catch (InterruptedException ex) {
+          return;
+        } catch (Exception ex) {
+          _log.warn("Error in trip update tail task", ex);
+          try {
+            Thread.sleep(_refreshInterval * 1000L);
+          } catch (InterruptedException ie) {
+            return;
+          }
+        }
+      }
+    }
+  }
 
-        updateList.setBusIDs(new ArrayList<Object>(busIDs));
+  /**
+   * Task that republishes the feed if the tailing thread has changed
+   * updateList since the last run; scheduled every _publishDebounce ms so
+   * bursts of departures cost one publish. Quiet feeds are still republished
+   * every _refreshInterval seconds so that old updates expire.
+   */
+  private class PublishTask implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        long sinceLast = System.currentTimeMillis() - _lastPublish;
+        if (_dirty.getAndSet(false) || sinceLast >= _refreshInterval * 1000L) {
+          publishUpdates();
+        }
       } catch (Exception ex) {
-        _log.warn("Error in bus ID refresh task", ex);
+        _log.warn("Error in trip update publish task", ex);
       }
     }
   }
 
   /**
-   * Convert a (numeric) string to a double.
+   * The vehicles under one index key as of a publish. The feed is encoded
+   * the first time it is requested.
    */
-  private double objectToDouble(Object obj) {
-    String str = obj.toString();
-    double d = Double.valueOf(str).doubleValue();
-    return d;
+  private static class FeedView {
+
+    private final List<Update> _updates;
+
+    private final long _version;
+
+    private volatile EncodedFeed _encoded;
+
+    FeedView(List<Update> updates, long version) {
+      _updates = updates;
+      _version = version;
+    }
+
+    EncodedFeed getEncodedFeed() {
+      EncodedFeed encoded = _encoded;
+      if (encoded != null) {
+        return encoded;
+      }
+      synchronized (this) {
+        if (_encoded == null) {
+          List<FeedEntity> entities = new ArrayList<FeedEntity>(
+              _updates.size());
+          for (Update update : _updates) {
+            entities.add(update.getFeedEntity());
+          }
+          _encoded = EncodedFeed.encode(
+              GtfsRealtimeLibrary.createFeedMessageBuilder().getHeader(),
+              entities, _version);
+        }
+        return _encoded;
+      }
+    }
+  }
+
+  /**
+   * Task that periodically saves the vehicle state to the snapshot file.
+   */
+  private class SnapshotTask implements Runnable {
+
+    @Override
+    public void run() {
+      saveSnapshot();
+    }
+  }
+
+  /**
+   * Task that will download bus IDs from the remote data source when
+   * executed.
+   */
+  private class BusListRefreshTask implements Runnable {
+
+    @Override
+    public void run() {
+      refreshBusList();
+    }
   }
 
 }
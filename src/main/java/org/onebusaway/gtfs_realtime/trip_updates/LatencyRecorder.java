@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records request latencies into log-scale buckets (eight per doubling, from
+ * 10 us to about 100 s) without locking, and reports quantiles over the last
+ * full window. Each time a window closes its p50, p99 and p999 are logged.
+ * Windows close when a sample is recorded or the quantiles are read,
+ * whichever comes first, so a quiet server does not keep reporting a window
+ * that ended long ago.
+ *
+ * @author jlynn
+ */
+public class LatencyRecorder {
+
+  private static final Logger _log = LoggerFactory.getLogger(LatencyRecorder.class);
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  /**
+   * Upper bound of each bucket, in ns; the last bucket takes everything
+   * above.
+   */
+  private static final long[] BOUNDS;
+
+  static {
+    BOUNDS = new long[185];
+    for (int i = 0; i < BOUNDS.length; i++) {
+      BOUNDS[i] = (long) (10000 * Math.pow(2, i / 8.0));
+    }
+  }
+
+  private final String _name;
+
+  private final long _windowNanos;
+
+  private volatile AtomicLongArray _current = new AtomicLongArray(BOUNDS.length + 1);
+
+  private volatile long[] _previous = new long[BOUNDS.length + 1];
+
+  private volatile long _windowStart = System.nanoTime();
+
+  private final AtomicLong _count = new AtomicLong();
+
+  private final AtomicLong _sumNanos = new AtomicLong();
+
+  /**
+   * @param name what is being timed, for the log.
+   * @param windowMillis length of the window quantiles are reported over.
+   */
+  public LatencyRecorder(String name, long windowMillis) {
+    _name = name;
+    _windowNanos = windowMillis * 1000000L;
+  }
+
+  /**
+   * Record the time elapsed since startNanos.
+   */
+  public void recordSince(long startNanos) {
+    long now = System.nanoTime();
+    long nanos = now - startNanos;
+    maybeRotate(now);
+    int i = Arrays.binarySearch(BOUNDS, nanos);
+    _current.incrementAndGet(i >= 0 ? i : -i - 1);
+    _count.incrementAndGet();
+    _sumNanos.addAndGet(nanos);
+  }
+
+  /**
+   * @return the latency at quantile q over the last full window, in
+   *         seconds; 0 until the first window has closed.
+   */
+  public double getQuantile(double q) {
+    maybeRotate(System.nanoTime());
+    return quantile(_previous, q);
+  }
+
+  /**
+   * Append the quantiles of the last full window, plus the running sum and
+   * count, as a Prometheus summary.
+   */
+  public void render(StringBuilder out, String name, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" summary\n");
+    maybeRotate(System.nanoTime());
+    long[] counts = _previous;
+    for (double q : QUANTILES) {
+      out.append(name).append("{quantile=\"").append(q).append("\"} ")
+          .append(quantile(counts, q)).append('\n');
+    }
+    out.append(name).append("_sum ").append(_sumNanos.get() / 1e9).append('\n');
+    out.append(name).append("_count ").append(_count.get()).append('\n');
+  }
+
+  private void maybeRotate(long now) {
+    if (now - _windowStart >= _windowNanos) {
+      rotate(now);
+    }
+  }
+
+  private synchronized void rotate(long now) {
+    long elapsed = now - _windowStart;
+    if (elapsed < _windowNanos) {
+      return;
+    }
+    AtomicLongArray closed = _current;
+    _current = new AtomicLongArray(BOUNDS.length + 1);
+    // Windows stay aligned to the first; a gap of more than one leaves the
+    // last full window empty.
+    _windowStart = now - elapsed % _windowNanos;
+
+    long[] counts = new long[closed.length()];
+    long total = 0;
+    if (elapsed < 2 * _windowNanos) {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = closed.get(i);
+        total += counts[i];
+      }
+    }
+    _previous = counts;
+    _log.info(_name + " latency over the last " + _windowNanos / 1000000000L
+        + " s: " + total + " requests, p50 " + quantile(counts, 0.5) * 1000
+        + " ms, p99 " + quantile(counts, 0.99) * 1000 + " ms, p999 "
+        + quantile(counts, 0.999) * 1000 + " ms");
+  }
+
+  /**
+   * @return the upper bound of the bucket holding quantile q, in seconds, or
+   *         0 if there are no samples.
+   */
+  private static double quantile(long[] counts, double q) {
+    long total = 0;
+    for (long c : counts) {
+      total += c;
+    }
+    if (total == 0) {
+      return 0.0;
+    }
+    long rank = (long) Math.ceil(q * total);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        long bound = i < BOUNDS.length ? BOUNDS[i] : BOUNDS[BOUNDS.length - 1];
+        return bound / 1e9;
+      }
+    }
+    return BOUNDS[BOUNDS.length - 1] / 1e9;
+  }
+}
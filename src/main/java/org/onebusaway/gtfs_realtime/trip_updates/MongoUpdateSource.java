@@ -0,0 +1,573 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.AggregationOutput;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+
+/**
+ * Reads departures (type 1 documents) from a MongoDB collection. Queries
+ * only return the fields an {@link Update} is built from.
+ *
+ * The queries need two compound indexes: {device_id, type, time} for the
+ * per-bus latest-departure lookups, and {type, time} for the time-window
+ * queries (aggregation, incremental, bus list and tailing). {@link #open()}
+ * checks that they exist, creates them if asked to, and warns when a
+ * sample query would still scan the collection or sort in memory.
+ *
+ * @author jlynn
+ */
+public class MongoUpdateSource implements UpdateSource {
+
+  private static final Logger _log = LoggerFactory.getLogger(MongoUpdateSource.class);
+
+  private static final DBObject DEVICE_INDEX = new BasicDBObject("device_id", 1)
+      .append("type", 1).append("time", -1);
+
+  private static final DBObject TIME_INDEX = new BasicDBObject("type", 1)
+      .append("time", 1);
+
+  /**
+   * Projection onto the fields read by {@link Update#Update(DBObject)}.
+   */
+  private static final DBObject FIELDS = new BasicDBObject("_id", 0);
+
+  static {
+    for (String field : Update.DB_FIELDS) {
+      FIELDS.put(field, 1);
+    }
+  }
+
+  private MongoClient _client;
+
+  /**
+   * Whether _client was handed in by the caller, who then closes it.
+   */
+  private boolean _sharedClient = false;
+
+  private DB _db;
+  private DBCollection _coll;
+
+  /**
+   * Whether the latest departure for each bus is fetched with a single
+   * server-side aggregation (true) or with one query per bus ID (false).
+   */
+  private boolean _useAggregation = true;
+
+  /**
+   * Number of threads running per-bus queries in parallel; 1 runs them on
+   * the calling thread. Should not exceed the Mongo connection pool size.
+   */
+  private int _fetchThreads = 1;
+
+  private ExecutorService _fetchExecutor;
+
+  /**
+   * Documents per cursor batch; 0 leaves it to the server.
+   */
+  private int _batchSize = 0;
+
+  /**
+   * Whether missing indexes are created by {@link #open()}.
+   */
+  private boolean _createIndexes = false;
+
+  private RefreshMetrics _metrics = new RefreshMetrics();
+
+  /**
+   * @param url is a string pointing to our MongoDB (w/ authentication)
+   */
+  public void setMongo(String url) throws IOException {
+    MongoClientURI uri = new MongoClientURI(url);
+    // The URI may carry credentials; log only where we connect.
+    _log.info("connecting to MongoDB at " + uri.getHosts());
+    _client = new MongoClient(uri);
+  }
+  /**
+   * @param client connection pool shared with other sources.
+   */
+  public void setMongoClient(MongoClient client) {
+    _client = client;
+    _sharedClient = true;
+  }
+  public void setDB(String db) {
+    _db = _client.getDB(db);
+  }
+  public void setColl(String coll) {
+    _coll = _db.getCollection(coll);
+    _coll.setDBDecoderFactory(UpdateDBDecoder.FACTORY);
+  }
+
+  /**
+   * @param fetchMode "aggregate" to fetch the latest departure of every bus
+   *          in one aggregation pass, or "perBus" to fall back to one query
+   *          per bus ID.
+   */
+  public void setFetchMode(String fetchMode) {
+    if (fetchMode.equals("aggregate"))
+      _useAggregation = true;
+    else if (fetchMode.equals("perBus"))
+      _useAggregation = false;
+    else
+      throw new IllegalArgumentException("Unknown fetch mode: " + fetchMode);
+  }
+
+  /**
+   * @param fetchThreads number of threads running per-bus queries.
+   */
+  public void setFetchThreads(int fetchThreads) {
+    _fetchThreads = fetchThreads;
+    if (_fetchThreads > 1 && _fetchExecutor == null) {
+      _fetchExecutor = Executors.newFixedThreadPool(_fetchThreads);
+    }
+  }
+
+  /**
+   * @param batchSize documents per cursor batch.
+   */
+  public void setBatchSize(int batchSize) {
+    _batchSize = batchSize;
+  }
+
+  /**
+   * @param readPreference e.g. "primary", "secondaryPreferred" or "nearest".
+   */
+  public void setReadPreference(String readPreference) {
+    _coll.setReadPreference(ReadPreference.valueOf(readPreference));
+  }
+
+  /**
+   * @param createIndexes if true, create missing indexes on open.
+   */
+  public void setCreateIndexes(boolean createIndexes) {
+    _createIndexes = createIndexes;
+  }
+
+  @Override
+  public void setMetrics(RefreshMetrics metrics) {
+    _metrics = metrics;
+  }
+
+  /**
+   * Verify (or create) the indexes the queries need, then check the plans of
+   * a sample per-bus query and a sample time-window query.
+   *
+   * @throws IOException if the server cannot be reached.
+   */
+  @Override
+  public void open() throws IOException {
+    try {
+      checkIndexes();
+    } catch (MongoException ex) {
+      throw new IOException("could not check indexes on " + _coll.getFullName()
+          + " at " + _coll.getDB().getMongo().getServerAddressList(), ex);
+    }
+  }
+
+  private void checkIndexes() {
+    ensureIndex(DEVICE_INDEX);
+    ensureIndex(TIME_INDEX);
+
+    long since = System.currentTimeMillis() - 60 * 1000;
+    DBObject windowQuery = new BasicDBObject("type", 1)
+        .append("time", new BasicDBObject("$gt", since));
+    checkPlan("time-window", _coll.find(windowQuery, FIELDS));
+
+    DBObject sample = _coll.findOne(new BasicDBObject("type", 1),
+        new BasicDBObject("device_id", 1));
+    if (sample != null && sample.get("device_id") != null) {
+      checkPlan("per-bus", _coll.find(perBusQuery(sample.get("device_id")
+          .toString()), FIELDS).sort(new BasicDBObject("time", -1)).limit(1));
+    }
+  }
+
+  @Override
+  public boolean requiresVehicleIds() {
+    return !_useAggregation;
+  }
+
+  @Override
+  public List<Update> getLatestUpdates(List<String> vehicleIds, long minTime)
+      throws IOException {
+    long start = System.nanoTime();
+    if (_useAggregation) {
+      Iterable<DBObject> results = downloadUpdatesAggregate(minTime);
+      _metrics.getQueryTime("aggregate").observeSince(start);
+      return decode(results);
+    }
+    List<DBObject> results = downloadUpdatesPerBus(vehicleIds);
+    _metrics.getQueryTime("perBus").observeSince(start);
+    return decode(results);
+  }
+
+  /**
+   * Incremental fetch: every departure written after the given time. Only the
+   * devices that reported since then show up, and addUpdate() keeps the
+   * newest document for each of them.
+   */
+  @Override
+  public List<Update> getUpdatesSince(long since) throws IOException {
+    ArrayList<DBObject> myList = new ArrayList<DBObject>();
+
+    BasicDBObject query = new BasicDBObject("type", 1)
+        .append("time", new BasicDBObject("$gt", since));
+
+    _log.info("querying departures since " + since);
+    long start = System.nanoTime();
+    DBCursor cursor = _coll.find(query, FIELDS);
+    if (_batchSize > 0) {
+      cursor.batchSize(_batchSize);
+    }
+
+    try {
+      while (cursor.hasNext()) {
+        myList.add(cursor.next());
+      }
+    } finally {
+      cursor.close();
+    }
+    _metrics.getQueryTime("incremental").observeSince(start);
+
+    return decode(myList);
+  }
+
+  @Override
+  public List<String> getVehicleIdsSince(long since) throws IOException {
+    BasicDBObject query = new BasicDBObject("type", 1)
+        .append("time", new BasicDBObject("$gt", since));
+    long start = System.nanoTime();
+    List<Object> busIDs = _coll.distinct("device_id", query);
+    _metrics.getQueryTime("busList").observeSince(start);
+
+    List<String> ids = new ArrayList<String>(busIDs.size());
+    for (Object busID : busIDs) {
+      ids.add(busID.toString());
+    }
+    return ids;
+  }
+
+  /**
+   * Only capped collections can be tailed.
+   */
+  @Override
+  public boolean canTail() {
+    if (!_coll.isCapped()) {
+      _log.warn("collection " + _coll.getName() + " is not capped and cannot "
+          + "be tailed");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Tail the capped collection with a tailable, await-data cursor. Returns
+   * when the cursor dies.
+   */
+  @Override
+  public void tailUpdates(long since, UpdateHandler handler) {
+    BasicDBObject query = new BasicDBObject("type", 1)
+        .append("time", new BasicDBObject("$gt", since));
+
+    _log.info("tailing departures since " + since);
+    DBCursor cursor = _coll.find(query, FIELDS)
+        .addOption(Bytes.QUERYOPTION_TAILABLE)
+        .addOption(Bytes.QUERYOPTION_AWAITDATA);
+    if (_batchSize > 0) {
+      cursor.batchSize(_batchSize);
+    }
+
+    try {
+      while (cursor.hasNext()) {
+        handler.handleUpdate(new Update(cursor.next()));
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (_fetchExecutor != null) {
+      _fetchExecutor.shutdownNow();
+    }
+    if (_client != null && !_sharedClient) {
+      _client.close();
+    }
+  }
+
+  /**
+   * Turn each DBObject into an Update.
+   */
+  private List<Update> decode(Iterable<DBObject> dbList) {
+    long start = System.nanoTime();
+    ArrayList<Update> updates = new ArrayList<Update>();
+    for (DBObject obj : dbList) {
+      updates.add(new Update(obj));
+    }
+    _metrics.getDecodeTime().observeSince(start);
+    return updates;
+  }
+
+  /**
+   * Fetch the latest departure per device_id in a single aggregation pass.
+   *
+   * @return a DBObject sequence of recent entries in MongoDB collection.
+   */
+  private Iterable<DBObject> downloadUpdatesAggregate(long minTime)
+      throws IOException {
+    DBObject[] pipeline = aggregatePipeline(minTime);
+    _log.info("aggregating latest departure per bus");
+    AggregationOutput output = _coll.aggregate(pipeline[0],
+        Arrays.copyOfRange(pipeline, 1, pipeline.length));
+    return output.results();
+  }
+
+  /**
+   * @return the stages of the latest-departure aggregation: match
+   *         departures, sort each device's newest first, and keep the first
+   *         document of each device group. Departures older than minTime are
+   *         left out, since clearOld() would drop them anyway. Each group
+   *         carries the fields {@link Update#Update(DBObject)} reads, so its
+   *         output decodes like a plain query result.
+   */
+  static DBObject[] aggregatePipeline(long minTime) {
+    DBObject match = new BasicDBObject("$match",
+        new BasicDBObject("type", 1)
+            .append("time", new BasicDBObject("$gte", minTime)));
+
+    DBObject sort = new BasicDBObject("$sort",
+        new BasicDBObject("device_id", 1).append("time", -1));
+
+    BasicDBObject groupFields = new BasicDBObject("_id", "$device_id");
+    for (String field : Update.DB_FIELDS) {
+      groupFields.append(field, new BasicDBObject("$first", "$" + field));
+    }
+    DBObject group = new BasicDBObject("$group", groupFields);
+
+    return new DBObject[] {match, sort, group};
+  }
+
+  /**
+   * Fallback fetch: one query per bus ID. With more than one fetch thread,
+   * the bus list is split into one shard per thread and the shards are
+   * queried in parallel.
+   *
+   * @return a DBObject array of recent entries in MongoDB collection.
+   */
+  private List<DBObject> downloadUpdatesPerBus(List<String> busIDs)
+      throws IOException {
+    if (_fetchExecutor == null) {
+      return downloadUpdatesForBuses(busIDs);
+    }
+
+    int shardSize = (busIDs.size() + _fetchThreads - 1) / _fetchThreads;
+    List<Future<ArrayList<DBObject>>> shards =
+        new ArrayList<Future<ArrayList<DBObject>>>();
+    for (int from = 0; from < busIDs.size(); from += shardSize) {
+      final List<String> shard = busIDs.subList(from,
+          Math.min(from + shardSize, busIDs.size()));
+      shards.add(_fetchExecutor.submit(new Callable<ArrayList<DBObject>>() {
+        @Override
+        public ArrayList<DBObject> call() throws IOException {
+          return downloadUpdatesForBuses(shard);
+        }
+      }));
+    }
+
+    ArrayList<DBObject> myList = new ArrayList<DBObject>();
+    try {
+      for (Future<ArrayList<DBObject>> shard : shards) {
+        myList.addAll(shard.get());
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while fetching updates");
+    } catch (ExecutionException ex) {
+      throw new IOException(ex.getCause());
+    } finally {
+      for (Future<ArrayList<DBObject>> shard : shards) {
+        shard.cancel(true);
+      }
+    }
+    return myList;
+  }
+
+  /**
+   * @return the latest departure of each of the given buses.
+   */
+  private ArrayList<DBObject> downloadUpdatesForBuses(List<String> busIDs)
+      throws IOException {
+    ArrayList<DBObject> myList = new ArrayList<DBObject>();
+
+    // Loop over bus ids; get most recent timestamp for each
+    for (String busID : busIDs) {
+      BasicDBObject query = perBusQuery(busID);
+
+      _log.info("query on busID " + busID.toString());
+      DBCursor cursor2 = _coll.find(query, FIELDS)
+          .sort( new BasicDBObject("time", -1))
+          .limit(1);
+
+      try {
+        while (cursor2.hasNext()) {
+          DBObject myDoc = cursor2.next();
+          myList.add(myDoc);
+        }
+      } finally {
+        cursor2.close();
+      }
+
+    }
+
+    return myList;
+  }
+
+  /**
+   * @return a query for the departures of one bus.
+   */
+  private static BasicDBObject perBusQuery(String busID) {
+    List<BasicDBObject> queryList = new ArrayList<BasicDBObject>();
+
+    // match on bus ID:
+    queryList.add(new BasicDBObject("device_id",busID.toString()));
+
+    // look for departures only:
+    queryList.add(new BasicDBObject("type", 1));
+
+    // build full query
+    return new BasicDBObject("$and", queryList);
+  }
+
+  /**
+   * Check that an index starting with the given keys exists, creating the
+   * index in the background if it is missing and _createIndexes is set.
+   */
+  private void ensureIndex(DBObject keys) {
+    for (DBObject index : _coll.getIndexInfo()) {
+      DBObject key = (DBObject) index.get("key");
+      if (key != null && hasPrefix(key, keys)) {
+        _log.info("found index " + index.get("name") + " for " + keys);
+        return;
+      }
+    }
+    if (_createIndexes) {
+      _log.info("creating index " + keys + " on " + _coll.getName());
+      _coll.ensureIndex(keys, new BasicDBObject("background", true));
+    } else {
+      _log.warn("collection " + _coll.getName() + " has no index on " + keys
+          + "; queries will scan the collection");
+    }
+  }
+
+  /**
+   * @return whether the index key starts with the given keys, in order and
+   *         either with the same directions or with every one reversed, since
+   *         Mongo can walk an index backwards.
+   */
+  static boolean hasPrefix(DBObject key, DBObject keys) {
+    List<String> indexFields = new ArrayList<String>(key.keySet());
+    List<String> fields = new ArrayList<String>(keys.keySet());
+    if (indexFields.size() < fields.size()) {
+      return false;
+    }
+    int flip = 0;
+    for (int i = 0; i < fields.size(); i++) {
+      String field = fields.get(i);
+      if (!field.equals(indexFields.get(i))) {
+        return false;
+      }
+      Object direction = key.get(field);
+      if (!(direction instanceof Number)) {
+        return false;
+      }
+      int sign = Integer.signum(((Number) direction).intValue())
+          * Integer.signum(((Number) keys.get(field)).intValue());
+      if (sign == 0 || (flip != 0 && sign != flip)) {
+        return false;
+      }
+      flip = sign;
+    }
+    return true;
+  }
+
+  /**
+   * Log a warning if the query plan scans the whole collection or sorts in
+   * memory. Handles both the legacy explain output (cursor, scanAndOrder)
+   * and the queryPlanner output of newer servers (stage names).
+   */
+  private void checkPlan(String name, DBCursor cursor) {
+    DBObject plan;
+    try {
+      plan = cursor.explain();
+    } catch (RuntimeException ex) {
+      _log.warn("could not explain " + name + " query", ex);
+      return;
+    }
+
+    Set<String> stages = new HashSet<String>();
+    collectStages(plan, stages);
+    Object legacyCursor = plan.get("cursor");
+    if (stages.contains("COLLSCAN") || (legacyCursor != null
+        && legacyCursor.toString().startsWith("BasicCursor"))) {
+      _log.warn(name + " query scans the whole collection: " + plan);
+    }
+    if (stages.contains("SORT") || Boolean.TRUE.equals(plan.get("scanAndOrder"))) {
+      _log.warn(name + " query sorts in memory: " + plan);
+    }
+  }
+
+  private static void collectStages(Object plan, Set<String> stages) {
+    if (plan instanceof List) {
+      for (Object child : (List<?>) plan) {
+        collectStages(child, stages);
+      }
+    } else if (plan instanceof DBObject) {
+      DBObject obj = (DBObject) plan;
+      for (String key : obj.keySet()) {
+        Object value = obj.get(key);
+        if (key.equals("stage") && value != null) {
+          stages.add(value.toString());
+        } else if (!key.equals("rejectedPlans")) {
+          collectStages(value, stages);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+
+/**
+ * Hosts several named feed pipelines in one process, e.g. one per agency.
+ * Each feed has its own {@link GtfsRealtimeProviderImpl} and update store,
+ * but they all read through one MongoClient connection pool and run on one
+ * scheduler. The scheduler has a thread for every task the feeds keep on it,
+ * so one slow query cannot hold up another feed or another task.
+ *
+ * @author jlynn
+ */
+@Singleton
+public class MultiFeedService {
+
+  private static final Logger _log = LoggerFactory.getLogger(MultiFeedService.class);
+
+  private final Map<String, GtfsRealtimeProviderImpl> _feeds =
+      new LinkedHashMap<String, GtfsRealtimeProviderImpl>();
+
+  private MongoClient _client;
+
+  private ScheduledExecutorService _executor;
+
+  /**
+   * @param url is a string pointing to our MongoDB (w/ authentication)
+   */
+  public void setMongo(String url) throws IOException {
+    _client = new MongoClient(new MongoClientURI(url));
+  }
+
+  /**
+   * @return the connection pool shared by every feed's source.
+   */
+  public MongoClient getMongoClient() {
+    return _client;
+  }
+
+  /**
+   * @param name feed name, also the last segment of its URL path.
+   * @param provider a configured provider that has not been started.
+   */
+  public void addFeed(String name, GtfsRealtimeProviderImpl provider) {
+    if (_feeds.containsKey(name)) {
+      throw new IllegalArgumentException("Duplicate feed name: " + name);
+    }
+    _feeds.put(name, provider);
+  }
+
+  /**
+   * @return the feeds by name, in the order they were added.
+   */
+  public Map<String, GtfsRealtimeProviderImpl> getFeeds() {
+    return Collections.unmodifiableMap(_feeds);
+  }
+
+  @PostConstruct
+  public void start() {
+    if (_feeds.isEmpty()) {
+      return;
+    }
+    _log.info("starting feeds " + _feeds.keySet());
+    // Refreshes, bus list discovery and snapshots all block, and each feed
+    // runs up to three of them at once; a thread per feed would let a slow
+    // distinct or snapshot delay that feed's trip updates. The count comes
+    // from each feed's configuration, so nothing touches Mongo before the
+    // feeds start and log their own errors.
+    int threads = 0;
+    for (GtfsRealtimeProviderImpl provider : _feeds.values()) {
+      threads += provider.getScheduledTaskCount();
+    }
+    _executor = Executors.newScheduledThreadPool(Math.max(1, threads));
+    for (GtfsRealtimeProviderImpl provider : _feeds.values()) {
+      provider.setExecutor(_executor);
+      provider.start();
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_executor == null) {
+      return;
+    }
+    for (GtfsRealtimeProviderImpl provider : _feeds.values()) {
+      provider.stop();
+    }
+    _executor.shutdownNow();
+    if (_client != null) {
+      _client.close();
+    }
+  }
+}
@@ -0,0 +1,414 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small non-blocking HTTP/1.1 server for the feed. One thread accepts
+ * connections and hands them round-robin to a few event loops, each of which
+ * reads requests, builds responses with {@link UpdatesHttpServer} and writes
+ * the response header and the feed's direct buffer to the socket in one
+ * gathering write, so the feed is never copied per request. Only GET and
+ * HEAD are supported; connections are kept alive unless the client asks
+ * otherwise, and closed after a minute idle.
+ *
+ * @author jlynn
+ */
+public class NioUpdatesServer {
+
+  private static final Logger _log = LoggerFactory.getLogger(NioUpdatesServer.class);
+
+  private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+  /**
+   * Largest request, line and headers, that is accepted.
+   */
+  private static final int MAX_REQUEST = 8 * 1024;
+
+  private static final long IDLE_MILLIS = 60 * 1000;
+
+  private final UpdatesHttpServer _server;
+
+  private final InetSocketAddress _address;
+
+  private final EventLoop[] _loops;
+
+  private ServerSocketChannel _acceptor;
+
+  private Thread _acceptThread;
+
+  private volatile boolean _running = false;
+
+  public NioUpdatesServer(UpdatesHttpServer server, InetSocketAddress address,
+      int threads) {
+    _server = server;
+    _address = address;
+    _loops = new EventLoop[Math.max(1, threads)];
+  }
+
+  public void start() throws IOException {
+    _acceptor = ServerSocketChannel.open();
+    _acceptor.socket().setReuseAddress(true);
+    _acceptor.socket().bind(_address, 1024);
+    _running = true;
+
+    for (int i = 0; i < _loops.length; i++) {
+      _loops[i] = new EventLoop(Selector.open());
+      Thread thread = new Thread(_loops[i], "nio-updates-" + i);
+      thread.start();
+    }
+    _acceptThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        accept();
+      }
+    }, "nio-updates-accept");
+    _acceptThread.start();
+    _log.info("serving with " + _loops.length + " event loops on "
+        + _address);
+  }
+
+  public void stop() {
+    _running = false;
+    try {
+      _acceptor.close();
+    } catch (IOException ex) {
+      _log.warn("error closing acceptor", ex);
+    }
+    for (EventLoop loop : _loops) {
+      if (loop != null) {
+        loop._selector.wakeup();
+      }
+    }
+  }
+
+  private void accept() {
+    int next = 0;
+    while (_running) {
+      try {
+        SocketChannel channel = _acceptor.accept();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        EventLoop loop = _loops[next];
+        next = (next + 1) % _loops.length;
+        loop._pending.add(channel);
+        loop._selector.wakeup();
+      } catch (ClosedChannelException ex) {
+        break;
+      } catch (IOException ex) {
+        _log.warn("error accepting connection", ex);
+      }
+    }
+  }
+
+  /**
+   * State of one connection: its unread input and the response being
+   * written, if any.
+   */
+  private static class Connection {
+    final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST);
+    ByteBuffer[] out;
+    boolean keepAlive;
+    long requestStart;
+    long lastActive = System.currentTimeMillis();
+  }
+
+  private class EventLoop implements Runnable {
+
+    private final Selector _selector;
+
+    private final ConcurrentLinkedQueue<SocketChannel> _pending =
+        new ConcurrentLinkedQueue<SocketChannel>();
+
+    private long _lastIdleCheck = System.currentTimeMillis();
+
+    EventLoop(Selector selector) {
+      _selector = selector;
+    }
+
+    @Override
+    public void run() {
+      while (_running) {
+        try {
+          _selector.select(1000);
+          register();
+          Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            handle(key);
+          }
+          closeIdle();
+        } catch (IOException ex) {
+          _log.warn("error in event loop", ex);
+        }
+      }
+      for (SelectionKey key : _selector.keys()) {
+        close(key);
+      }
+      try {
+        _selector.close();
+      } catch (IOException ex) {
+        _log.warn("error closing selector", ex);
+      }
+    }
+
+    private void register() {
+      SocketChannel channel;
+      while ((channel = _pending.poll()) != null) {
+        try {
+          channel.register(_selector, SelectionKey.OP_READ, new Connection());
+        } catch (ClosedChannelException ex) {
+          // the client went away before we got to it
+        }
+      }
+    }
+
+    /**
+     * Serve one ready key. Any failure closes that connection only; the loop
+     * goes on serving the others.
+     */
+    private void handle(SelectionKey key) {
+      if (!key.isValid()) {
+        return;
+      }
+      Connection conn = (Connection) key.attachment();
+      conn.lastActive = System.currentTimeMillis();
+      try {
+        if (key.isReadable()) {
+          SocketChannel channel = (SocketChannel) key.channel();
+          if (channel.read(conn.in) < 0) {
+            close(key);
+            return;
+          }
+          process(key, conn);
+        } else if (key.isWritable()) {
+          write(key, conn);
+        }
+      } catch (IOException ex) {
+        close(key);
+      } catch (RuntimeException ex) {
+        _log.warn("error serving connection", ex);
+        close(key);
+      }
+    }
+
+    /**
+     * Answer the buffered request, if a complete one has arrived.
+     */
+    private void process(SelectionKey key, Connection conn)
+        throws IOException {
+      int end = findEnd(conn.in);
+      if (end < 0) {
+        if (!conn.in.hasRemaining()) {
+          send(key, conn, new UpdatesHttpServer.Response(431, null), false,
+              false);
+        }
+        return;
+      }
+      conn.requestStart = System.nanoTime();
+      String request = new String(conn.in.array(), 0, end, ASCII);
+      conn.in.flip();
+      conn.in.position(end + 4);
+      conn.in.compact();
+
+      String[] lines = request.split("\r\n");
+      String[] line = lines[0].split(" ");
+      if (line.length != 3) {
+        send(key, conn, new UpdatesHttpServer.Response(400, null), false, false);
+        return;
+      }
+      String method = line[0];
+      boolean head = method.equals("HEAD");
+      if (!head && !method.equals("GET")) {
+        send(key, conn, new UpdatesHttpServer.Response(405, null), false, false);
+        return;
+      }
+
+      String acceptEncoding = null;
+      String ifNoneMatch = null;
+      String connection = null;
+      for (int i = 1; i < lines.length; i++) {
+        int colon = lines[i].indexOf(':');
+        if (colon < 0) {
+          continue;
+        }
+        String name = lines[i].substring(0, colon).trim();
+        String value = lines[i].substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("Accept-Encoding")) {
+          acceptEncoding = value;
+        } else if (name.equalsIgnoreCase("If-None-Match")) {
+          ifNoneMatch = value;
+        } else if (name.equalsIgnoreCase("Connection")) {
+          connection = value;
+        }
+      }
+      boolean keepAlive = line[2].equals("HTTP/1.1")
+          ? !"close".equalsIgnoreCase(connection)
+          : "keep-alive".equalsIgnoreCase(connection);
+
+      // Decoded the way the JDK server decodes them.
+      String target = line[1];
+      String path;
+      String query;
+      try {
+        URI uri = new URI(target);
+        path = uri.getPath();
+        query = uri.getQuery();
+      } catch (URISyntaxException ex) {
+        send(key, conn, new UpdatesHttpServer.Response(400, null), false, false);
+        return;
+      }
+
+      UpdatesHttpServer.Response response;
+      try {
+        response = _server.respond(path, query, acceptEncoding, ifNoneMatch,
+            true);
+      } catch (RuntimeException ex) {
+        _log.warn("error answering " + target, ex);
+        response = new UpdatesHttpServer.Response(500, null);
+        keepAlive = false;
+      }
+      send(key, conn, response, keepAlive, head);
+    }
+
+    private void send(SelectionKey key, Connection conn,
+        UpdatesHttpServer.Response response, boolean keepAlive, boolean head)
+        throws IOException {
+      if (conn.requestStart == 0) {
+        conn.requestStart = System.nanoTime();
+      }
+      StringBuilder header = new StringBuilder(256);
+      header.append("HTTP/1.1 ").append(response.status).append(' ')
+          .append(reason(response.status)).append("\r\n");
+      for (Map.Entry<String, String> h : response.headers.entrySet()) {
+        header.append(h.getKey()).append(": ").append(h.getValue())
+            .append("\r\n");
+      }
+      if (response.status != 304) {
+        int length = response.body == null ? 0 : response.body.remaining();
+        header.append("Content-Length: ").append(length).append("\r\n");
+      }
+      if (!keepAlive) {
+        header.append("Connection: close\r\n");
+      }
+      header.append("\r\n");
+
+      ByteBuffer headerBytes = ByteBuffer.wrap(header.toString().getBytes(
+          ASCII));
+      if (response.body == null || head) {
+        conn.out = new ByteBuffer[] {headerBytes};
+      } else {
+        conn.out = new ByteBuffer[] {headerBytes, response.body};
+      }
+      conn.keepAlive = keepAlive;
+      write(key, conn);
+    }
+
+    private void write(SelectionKey key, Connection conn) throws IOException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      channel.write(conn.out);
+      if (conn.out[conn.out.length - 1].hasRemaining()) {
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      conn.out = null;
+      _server.getLatency().recordSince(conn.requestStart);
+      conn.requestStart = 0;
+      if (!conn.keepAlive) {
+        close(key);
+        return;
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      if (conn.in.position() > 0) {
+        process(key, conn);
+      }
+    }
+
+    private void closeIdle() {
+      long now = System.currentTimeMillis();
+      if (now - _lastIdleCheck < 1000) {
+        return;
+      }
+      _lastIdleCheck = now;
+      for (SelectionKey key : _selector.keys()) {
+        Connection conn = (Connection) key.attachment();
+        if (conn != null && now - conn.lastActive > IDLE_MILLIS) {
+          close(key);
+        }
+      }
+    }
+
+    private void close(SelectionKey key) {
+      key.cancel();
+      try {
+        key.channel().close();
+      } catch (IOException ex) {
+        // nothing more to do with it
+      }
+    }
+  }
+
+  /**
+   * @return the index of the blank line ending the request headers, or -1.
+   */
+  private static int findEnd(ByteBuffer in) {
+    byte[] buf = in.array();
+    for (int i = 0; i + 3 < in.position(); i++) {
+      if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r'
+          && buf[i + 3] == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String reason(int status) {
+    switch (status) {
+      case 200:
+        return "OK";
+      case 304:
+        return "Not Modified";
+      case 400:
+        return "Bad Request";
+      case 404:
+        return "Not Found";
+      case 405:
+        return "Method Not Allowed";
+      case 431:
+        return "Request Header Fields Too Large";
+      default:
+        return "Internal Server Error";
+    }
+  }
+}
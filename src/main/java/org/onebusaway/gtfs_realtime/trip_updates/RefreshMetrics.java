@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters, gauges and histograms describing the refresh pipeline, rendered
+ * in the Prometheus text exposition format.
+ *
+ * @author jlynn
+ */
+public class RefreshMetrics {
+
+  private static final double[] SECONDS_BUCKETS = {0.001, 0.005, 0.01, 0.05,
+      0.1, 0.5, 1, 5, 10, 30, 60};
+
+  private static final double[] COUNT_BUCKETS = {0, 10, 100, 1000, 10000,
+      100000, 1000000};
+
+  private static final double[] BYTES_BUCKETS = {1024, 16 * 1024, 128 * 1024,
+      1024 * 1024, 8 * 1024 * 1024, 64 * 1024 * 1024};
+
+  /**
+   * A cumulative histogram with fixed bucket upper bounds.
+   */
+  public static class Histogram {
+
+    private final double[] bounds;
+    private final long[] counts;
+    private long count = 0;
+    private double sum = 0.0;
+
+    public Histogram(double[] bounds) {
+      this.bounds = bounds;
+      this.counts = new long[bounds.length];
+    }
+
+    public synchronized void observe(double value) {
+      for (int i = 0; i < bounds.length; i++) {
+        if (value <= bounds[i]) {
+          counts[i]++;
+        }
+      }
+      count++;
+      sum += value;
+    }
+
+    /**
+     * Observe the time elapsed since startNanos, in seconds.
+     */
+    public void observeSince(long startNanos) {
+      observe((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    synchronized void render(StringBuilder out, String name, String labels) {
+      String sep = labels.isEmpty() ? "" : ",";
+      for (int i = 0; i < bounds.length; i++) {
+        out.append(name).append("_bucket{").append(labels).append(sep)
+            .append("le=\"").append(bounds[i]).append("\"} ")
+            .append(counts[i]).append('\n');
+      }
+      out.append(name).append("_bucket{").append(labels).append(sep)
+          .append("le=\"+Inf\"} ").append(count).append('\n');
+      String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+      out.append(name).append("_sum").append(braces).append(' ').append(sum)
+          .append('\n');
+      out.append(name).append("_count").append(braces).append(' ')
+          .append(count).append('\n');
+    }
+  }
+
+  private final ConcurrentHashMap<String, Histogram> queryTime =
+      new ConcurrentHashMap<String, Histogram>();
+  private final Histogram documentsRead = new Histogram(COUNT_BUCKETS);
+  private final Histogram decodeTime = new Histogram(SECONDS_BUCKETS);
+  private final Histogram mergeTime = new Histogram(SECONDS_BUCKETS);
+  private final Histogram feedBuildTime = new Histogram(SECONDS_BUCKETS);
+  private final Histogram serializeTime = new Histogram(SECONDS_BUCKETS);
+  private final Histogram feedBytes = new Histogram(BYTES_BUCKETS);
+  private final Histogram cycleTime = new Histogram(SECONDS_BUCKETS);
+
+  private final AtomicLong expiredTotal = new AtomicLong();
+  private final AtomicLong tailedTotal = new AtomicLong();
+  private volatile long expiredLast = 0;
+  private volatile long activeVehicles = 0;
+  private volatile long lastPublish = 0;
+  private volatile long refreshIntervalMillis = 0;
+  private final AtomicLong replayedTotal = new AtomicLong();
+  private volatile double replayRate = 0;
+
+  /**
+   * @param phase which Mongo query, e.g. "aggregate" or "busList".
+   */
+  public Histogram getQueryTime(String phase) {
+    Histogram h = queryTime.get(phase);
+    if (h == null) {
+      h = new Histogram(SECONDS_BUCKETS);
+      Histogram prev = queryTime.putIfAbsent(phase, h);
+      if (prev != null) {
+        h = prev;
+      }
+    }
+    return h;
+  }
+
+  public Histogram getDocumentsRead() {
+    return documentsRead;
+  }
+
+  public Histogram getDecodeTime() {
+    return decodeTime;
+  }
+
+  public Histogram getMergeTime() {
+    return mergeTime;
+  }
+
+  public Histogram getFeedBuildTime() {
+    return feedBuildTime;
+  }
+
+  public Histogram getSerializeTime() {
+    return serializeTime;
+  }
+
+  public Histogram getFeedBytes() {
+    return feedBytes;
+  }
+
+  public Histogram getCycleTime() {
+    return cycleTime;
+  }
+
+  public void recordExpired(int expired) {
+    expiredLast = expired;
+    expiredTotal.addAndGet(expired);
+  }
+
+  /**
+   * Record one document read by tailing the source.
+   */
+  public void recordTailed() {
+    tailedTotal.incrementAndGet();
+  }
+
+  public void recordPublish(int vehicles, long timeMillis) {
+    activeVehicles = vehicles;
+    lastPublish = timeMillis;
+  }
+
+  public void setRefreshInterval(long millis) {
+    refreshIntervalMillis = millis;
+  }
+
+  public void recordReplayed() {
+    replayedTotal.incrementAndGet();
+  }
+
+  /**
+   * Record the throughput of a finished pass over a replay file.
+   *
+   * @param departures departures released by the pass.
+   * @param elapsedMillis how long the pass took.
+   */
+  public void recordReplayPass(long departures, long elapsedMillis) {
+    replayRate = departures * 1000.0 / Math.max(1, elapsedMillis);
+  }
+
+  /**
+   * @return all metrics in the Prometheus text exposition format.
+   */
+  public String render() {
+    return render(Collections.singletonMap("", this));
+  }
+
+  /**
+   * Render the metrics of several feeds in one exposition, each sample
+   * labelled with its feed name. Samples are grouped by metric, as the
+   * format requires.
+   *
+   * @param feeds metrics by feed name; an empty name adds no label.
+   */
+  public static String render(Map<String, RefreshMetrics> feeds) {
+    Map<String, StringBuilder> families = new LinkedHashMap<String, StringBuilder>();
+    for (Map.Entry<String, RefreshMetrics> feed : feeds.entrySet()) {
+      String labels = feed.getKey().isEmpty() ? ""
+          : "feed=\"" + feed.getKey() + "\"";
+      feed.getValue().render(families, labels);
+    }
+    StringBuilder out = new StringBuilder();
+    for (StringBuilder family : families.values()) {
+      out.append(family);
+    }
+    return out.toString();
+  }
+
+  private void render(Map<String, StringBuilder> families, String labels) {
+    String sep = labels.isEmpty() ? "" : ",";
+    StringBuilder out = family(families, "trip_updates_mongo_query_seconds",
+        "histogram", "Mongo query latency by phase.");
+    for (Map.Entry<String, Histogram> entry : queryTime.entrySet()) {
+      entry.getValue().render(out, "trip_updates_mongo_query_seconds",
+          labels + sep + "phase=\"" + entry.getKey() + "\"");
+    }
+    histogram(families, labels, "trip_updates_documents_read", documentsRead,
+        "Documents read from Mongo per refresh.");
+    histogram(families, labels, "trip_updates_decode_seconds", decodeTime,
+        "Time decoding documents into updates per refresh.");
+    histogram(families, labels, "trip_updates_merge_seconds", mergeTime,
+        "Time merging updates into the update list per refresh.");
+    histogram(families, labels, "trip_updates_feed_build_seconds",
+        feedBuildTime, "Time building the feed message per publish.");
+    histogram(families, labels, "trip_updates_serialize_seconds",
+        serializeTime, "Time serializing the feed per publish.");
+    histogram(families, labels, "trip_updates_feed_bytes", feedBytes,
+        "Size of the encoded feed, in bytes.");
+    histogram(families, labels, "trip_updates_refresh_cycle_seconds",
+        cycleTime, "Wall-clock duration of a refresh cycle.");
+
+    sample(families, labels, "trip_updates_documents_tailed_total",
+        "counter", tailedTotal.get(),
+        "Documents read by tailing the source since startup.");
+    sample(families, labels, "trip_updates_active_vehicles", "gauge",
+        activeVehicles, "Vehicles in the last published feed.");
+    sample(families, labels, "trip_updates_expired_last", "gauge",
+        expiredLast, "Updates expired by the last clearOld.");
+    sample(families, labels, "trip_updates_expired_total", "counter",
+        expiredTotal.get(), "Updates expired by clearOld since startup.");
+    long last = lastPublish;
+    double age = last == 0 ? -1 : (System.currentTimeMillis() - last) / 1000.0;
+    sample(families, labels, "trip_updates_feed_age_seconds", "gauge", age,
+        "Seconds since the feed was last published; -1 before the first.");
+    sample(families, labels, "trip_updates_refresh_interval_seconds", "gauge",
+        refreshIntervalMillis / 1000.0, "Current refresh interval.");
+    if (replayedTotal.get() > 0) {
+      sample(families, labels, "trip_updates_replayed_total", "counter",
+          replayedTotal.get(), "Departures released by replay passes.");
+      sample(families, labels, "trip_updates_replay_rate", "gauge",
+          replayRate, "Departures per second of the last replay pass.");
+    }
+  }
+
+  /**
+   * @return the buffer for the named metric, started with its header.
+   */
+  private static StringBuilder family(Map<String, StringBuilder> families,
+      String name, String type, String help) {
+    StringBuilder out = families.get(name);
+    if (out == null) {
+      out = new StringBuilder();
+      out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+      families.put(name, out);
+    }
+    return out;
+  }
+
+  private static void histogram(Map<String, StringBuilder> families,
+      String labels, String name, Histogram h, String help) {
+    h.render(family(families, name, "histogram", help), name, labels);
+  }
+
+  private static void sample(Map<String, StringBuilder> families,
+      String labels, String name, String type, double value, String help) {
+    StringBuilder out = family(families, name, type, help);
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+}
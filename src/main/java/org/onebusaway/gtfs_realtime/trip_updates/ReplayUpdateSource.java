@@ -0,0 +1,379 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.util.JSON;
+
+/**
+ * Replays departures recorded in a file, for load testing without a live
+ * database. The file holds one document per departure, in the same shape as
+ * the Mongo collection, either as newline-delimited JSON (mongoexport) or as
+ * a BSON dump (mongodump); either may be gzipped. Documents should be in
+ * time order. Documents whose type is not 1 are skipped.
+ *
+ * Departures are released at their recorded spacing divided by the speed
+ * multiplier, and their times are shifted onto the wall clock so that they
+ * age and expire as live ones would. At speed 0 the file is read as fast as
+ * possible, but departures keep their recorded spacing. The replay starts
+ * over when the file ends, after the last departure of the previous pass;
+ * at speed 0 it waits until that departure is due, so released times never
+ * run more than one pass ahead of the wall clock and old ones age out.
+ *
+ * @author jlynn
+ */
+public class ReplayUpdateSource implements UpdateSource {
+
+  private static final Logger _log = LoggerFactory.getLogger(ReplayUpdateSource.class);
+
+  private File _path;
+
+  private double _speed = 1.0;
+
+  /**
+   * Departures released by the polling thread, oldest first. Pruned as the
+   * provider's queries move forward.
+   */
+  private final ArrayDeque<Update> _recent = new ArrayDeque<Update>();
+
+  /**
+   * Latest released departure of each vehicle.
+   */
+  private final Map<String, Update> _latest = new HashMap<String, Update>();
+
+  private Thread _thread;
+
+  private RefreshMetrics _metrics;
+
+  /**
+   * Time given to the last departure released, so a new pass never goes
+   * back in time.
+   */
+  private volatile long _lastDue = 0L;
+
+  /**
+   * @param path NDJSON or BSON file of recorded departures.
+   */
+  public void setPath(File path) {
+    _path = path;
+  }
+
+  /**
+   * @param speed replay speed multiplier; 0 replays as fast as possible.
+   */
+  public void setSpeed(double speed) {
+    _speed = speed;
+  }
+
+  /**
+   * Replay throughput is reported as departures replayed; there are no
+   * queries to time.
+   */
+  @Override
+  public void setMetrics(RefreshMetrics metrics) {
+    _metrics = metrics;
+  }
+
+  @Override
+  public void open() throws IOException {
+    if (!_path.canRead()) {
+      throw new IOException("cannot read replay file " + _path);
+    }
+  }
+
+  @Override
+  public boolean requiresVehicleIds() {
+    return false;
+  }
+
+  @Override
+  public List<Update> getLatestUpdates(List<String> vehicleIds, long minTime) {
+    startReplay();
+    synchronized (_recent) {
+      prune(minTime - 1);
+      List<Update> updates = new ArrayList<Update>(_latest.size());
+      for (Iterator<Update> it = _latest.values().iterator(); it.hasNext();) {
+        Update update = it.next();
+        if (update.getDepTime() < minTime) {
+          it.remove();
+        } else {
+          updates.add(update);
+        }
+      }
+      return updates;
+    }
+  }
+
+  @Override
+  public List<Update> getUpdatesSince(long since) {
+    startReplay();
+    synchronized (_recent) {
+      prune(since);
+      return new ArrayList<Update>(_recent);
+    }
+  }
+
+  @Override
+  public List<String> getVehicleIdsSince(long since) {
+    startReplay();
+    List<String> ids = new ArrayList<String>();
+    synchronized (_recent) {
+      for (Update update : _latest.values()) {
+        if (update.getDepTime() > since) {
+          ids.add(update.getId());
+        }
+      }
+    }
+    return ids;
+  }
+
+  @Override
+  public boolean canTail() {
+    return true;
+  }
+
+  /**
+   * Replay the file once, on the calling thread. Replayed times all fall
+   * after the call, so since is not needed.
+   */
+  @Override
+  public void tailUpdates(long since, UpdateHandler handler)
+      throws IOException, InterruptedException {
+    replay(handler);
+  }
+
+  @Override
+  public synchronized void close() {
+    if (_thread != null) {
+      _thread.interrupt();
+    }
+  }
+
+  /**
+   * @return departures released and not yet pruned.
+   */
+  int getBufferedCount() {
+    synchronized (_recent) {
+      return _recent.size();
+    }
+  }
+
+  /**
+   * Drop released departures at or before the given time.
+   */
+  private void prune(long time) {
+    while (!_recent.isEmpty() && _recent.peekFirst().getDepTime() <= time) {
+      _recent.removeFirst();
+    }
+  }
+
+  /**
+   * Start the thread that replays the file into _recent and _latest, if it
+   * is not already running.
+   */
+  private synchronized void startReplay() {
+    if (_thread != null) {
+      return;
+    }
+    final UpdateHandler buffer = new UpdateHandler() {
+      @Override
+      public void handleUpdate(Update update) {
+        synchronized (_recent) {
+          _recent.addLast(update);
+          _latest.put(update.getId(), update);
+        }
+      }
+    };
+    _thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            replay(buffer);
+          } catch (InterruptedException ex) {
+            return;
+          } catch (IOException ex) {
+            _log.warn("Error replaying " + _path, ex);
+            return;
+          }
+        }
+      }
+    }, "replay-" + _path.getName());
+    _thread.setDaemon(true);
+    _thread.start();
+  }
+
+  /**
+   * Read the file once, releasing each departure to the handler when it is
+   * due.
+   */
+  private void replay(UpdateHandler handler) throws IOException,
+      InterruptedException {
+    ReplayReader reader = new ReplayReader(_path);
+    try {
+      if (_speed <= 0) {
+        long wait = _lastDue - System.currentTimeMillis();
+        if (wait > 0) {
+          Thread.sleep(wait);
+        }
+      }
+      long passStart = System.currentTimeMillis();
+      long wallStart = Math.max(passStart, _lastDue + 1);
+      long dataStart = -1;
+      long count = 0;
+
+      DBObject obj;
+      while ((obj = reader.next()) != null) {
+        Object type = obj.get("type");
+        if (type != null && Update.toLong(type) != 1) {
+          continue;
+        }
+        Update update = new Update(obj);
+        if (dataStart < 0) {
+          dataStart = update.getDepTime();
+        }
+
+        long due;
+        if (_speed > 0) {
+          due = wallStart + (long) ((update.getDepTime() - dataStart) / _speed);
+          long wait = due - System.currentTimeMillis();
+          if (wait > 0) {
+            Thread.sleep(wait);
+          }
+        } else {
+          due = wallStart + (update.getDepTime() - dataStart);
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+        }
+
+        handler.handleUpdate(new Update(update.getId(), update.getTripId(),
+            update.getStopId(), update.getStopSequence(), due,
+            update.getDepDelay()));
+        _lastDue = Math.max(_lastDue, due);
+        if (_metrics != null) {
+          _metrics.recordReplayed();
+        }
+        count++;
+      }
+
+      long elapsed = Math.max(1, System.currentTimeMillis() - passStart);
+      if (_metrics != null) {
+        _metrics.recordReplayPass(count, elapsed);
+      }
+      _log.info("replayed " + count + " departures from " + _path + " in "
+          + elapsed + " ms (" + (count * 1000 / elapsed) + "/s)");
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads documents from an NDJSON or BSON file.
+   */
+  private static class ReplayReader implements Closeable {
+
+    private final BufferedReader _lines;
+
+    private final DataInputStream _bson;
+
+    private final DefaultDBDecoder _decoder = new DefaultDBDecoder();
+
+    ReplayReader(File path) throws IOException {
+      String name = path.getName();
+      InputStream in = new BufferedInputStream(new FileInputStream(path));
+      if (name.endsWith(".gz")) {
+        in = new GZIPInputStream(in);
+        name = name.substring(0, name.length() - 3);
+      }
+      if (name.endsWith(".bson")) {
+        _lines = null;
+        _bson = new DataInputStream(in);
+      } else {
+        _lines = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        _bson = null;
+      }
+    }
+
+    /**
+     * @return the next document, or null at the end of the file.
+     */
+    DBObject next() throws IOException {
+      if (_lines != null) {
+        String line;
+        while ((line = _lines.readLine()) != null) {
+          line = line.trim();
+          if (line.length() > 0) {
+            return (DBObject) JSON.parse(line);
+          }
+        }
+        return null;
+      }
+
+      // Each BSON document starts with its total length, little-endian.
+      int b0 = _bson.read();
+      if (b0 < 0) {
+        return null;
+      }
+      int b1 = _bson.readUnsignedByte();
+      int b2 = _bson.readUnsignedByte();
+      int b3 = _bson.readUnsignedByte();
+      int length = b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+      if (length < 5) {
+        throw new IOException("bad BSON document length: " + length);
+      }
+
+      byte[] doc = new byte[length];
+      doc[0] = (byte) b0;
+      doc[1] = (byte) b1;
+      doc[2] = (byte) b2;
+      doc[3] = (byte) b3;
+      _bson.readFully(doc, 4, length - 4);
+      return _decoder.decode(doc, (DBCollection) null);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (_lines != null) {
+        _lines.close();
+      } else {
+        _bson.close();
+      }
+    }
+  }
+}
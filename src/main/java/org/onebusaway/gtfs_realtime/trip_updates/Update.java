@@ -16,6 +16,8 @@
 package org.onebusaway.gtfs_realtime.trip_updates;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import javax.inject.Singleton;
 
@@ -34,6 +36,12 @@ import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
  */
 public class Update {
 
+  /**
+   * Document fields read by {@link #Update(DBObject)}.
+   */
+  static final String[] DB_FIELDS = {"device_id", "trip_id", "stop_id",
+      "stop_sequence", "time", "delay"};
+
   private final String id;
   private final String trip_id;
 
@@ -43,6 +51,18 @@ public class Update {
   private final long dep_time;
   private final long dep_delay;
 
+  /**
+   * Departures at earlier stops of the same trip, by stop_sequence. Each
+   * entry has no history of its own.
+   */
+  private final List<Update> earlierStops;
+
+  /**
+   * FeedEntity built from the fields above, created on first use. Updates
+   * are immutable, so it never needs to be rebuilt.
+   */
+  private volatile FeedEntity feedEntity;
+
   public Update(String id, String trip_id, String stop_id, 
       int stop_sequence, long dep_time, long dep_delay) {
     this.id = id;
@@ -51,6 +71,17 @@ public class Update {
     this.stop_sequence = stop_sequence;
     this.dep_time = dep_time;
     this.dep_delay = dep_delay;
+    this.earlierStops = Collections.emptyList();
+  }
+
+  private Update(Update update, List<Update> earlierStops) {
+    this.id = update.id;
+    this.trip_id = update.trip_id;
+    this.stop_id = update.stop_id;
+    this.stop_sequence = update.stop_sequence;
+    this.dep_time = update.dep_time;
+    this.dep_delay = update.dep_delay;
+    this.earlierStops = earlierStops;
   }
 
   public Update(DBObject obj) {
@@ -61,10 +92,10 @@ public class Update {
     String trip_id = (String) obj.get("trip_id");
 
     String stop_id = (String) obj.get("stop_id");
-    int stop_sequence = (int) objectToDouble(obj.get("stop_sequence"));
+    int stop_sequence = (int) toLong(obj.get("stop_sequence"));
 
-    long dep_time = (long) objectToDouble(obj.get("time"));
-    long dep_delay = (long) objectToDouble(obj.get("delay"));
+    long dep_time = toLong(obj.get("time"));
+    long dep_delay = toLong(obj.get("delay"));
     
     this.id = id;
     this.trip_id = trip_id;
@@ -72,6 +103,7 @@ public class Update {
     this.stop_sequence = stop_sequence;
     this.dep_time = dep_time;
     this.dep_delay = dep_delay;
+    this.earlierStops = Collections.emptyList();
   }
 
   public String getId() {
@@ -92,10 +124,72 @@ public class Update {
   public long getDepDelay() {
     return dep_delay;
   }
+  public List<Update> getEarlierStops() {
+    return earlierStops;
+  }
+
+  /**
+   * @return an update with the same departure and the given earlier stops,
+   *         e.g. when restoring a saved snapshot.
+   */
+  Update withEarlierStops(List<Update> earlierStops) {
+    return new Update(this, earlierStops);
+  }
+
+  /**
+   * Carry the stop history of the update this one replaces forward, if both
+   * are on the same trip.
+   *
+   * @param previous the vehicle's previous update, or null.
+   * @param maxStops most stop-time updates to keep per trip, including this
+   *          one.
+   * @return an update with the same departure plus the earlier stops of its
+   *         trip, or this update if there is no history to keep.
+   */
+  public Update withEarlierStops(Update previous, int maxStops) {
+    if (previous == null || maxStops <= 1 || trip_id == null
+        || !trip_id.equals(previous.trip_id)) {
+      return this;
+    }
+
+    ArrayList<Update> stops = new ArrayList<Update>(maxStops);
+    for (Update stop : previous.earlierStops) {
+      if (stop.stop_sequence < stop_sequence) {
+        stops.add(stop);
+      }
+    }
+    if (previous.stop_sequence < stop_sequence) {
+      stops.add(new Update(previous, Collections.<Update>emptyList()));
+    }
+    if (stops.isEmpty()) {
+      return this;
+    }
+
+    int from = Math.max(0, stops.size() - (maxStops - 1));
+    List<Update> kept = new ArrayList<Update>(stops.subList(from, stops.size()));
+    return new Update(this, Collections.unmodifiableList(kept));
+  }
+
+  public FeedEntity getFeedEntity() {
+    /**
+     * Return the memoized FeedEntity, building it on first use. Racing
+     * threads may both build it, but they build equal messages.
+     */
+    FeedEntity ent = feedEntity;
+    if (ent == null) {
+      ent = buildFeedEntity();
+      feedEntity = ent;
+    }
+    return ent;
+  }
 
   public FeedEntity.Builder getFeedEntityBuilder() {
+    return getFeedEntity().toBuilder();
+  }
+
+  private FeedEntity buildFeedEntity() {
     /**
-     * Create FeedEntity.Builder for constructing the actual GTFS-realtime
+     * Create FeedEntity for constructing the actual GTFS-realtime
      * locations feed from the location details.
      */
     FeedEntity.Builder new_ent = FeedEntity.newBuilder();
@@ -116,9 +210,12 @@ public class Update {
 		   delay
 		 }
 	       }
+	       ...
 	     }
 	   }
 
+       One StopTimeUpdate per earlier stop kept for the trip, then this
+       one. Later stops get the last delay by GTFS-realtime propagation.
      */
     new_ent.setId(id);
 
@@ -129,6 +226,17 @@ public class Update {
 
     new_up.setTrip(new_desc);
 
+    for (Update stop : earlierStops) {
+      new_up.addStopTimeUpdate(stop.getStopTimeUpdateBuilder());
+    }
+    new_up.addStopTimeUpdate(getStopTimeUpdateBuilder());
+
+    new_ent.setTripUpdate(new_up);
+
+    return new_ent.build();
+  }
+
+  private StopTimeUpdate.Builder getStopTimeUpdateBuilder() {
     StopTimeUpdate.Builder new_stu = StopTimeUpdate.newBuilder();
     new_stu.setStopId(stop_id);
     new_stu.setStopSequence(stop_sequence);
@@ -143,16 +251,22 @@ public class Update {
 
     new_stu.setDeparture(new_ste);
 
-    new_up.addStopTimeUpdate(new_stu);
-
-    new_ent.setTripUpdate(new_up);
-
-    return new_ent;
+    return new_stu;
   }
 
-  private double objectToDouble(Object obj) {
+  /**
+   * Convert a numeric document field to a long. Numbers decoded by the
+   * driver are read directly; only string fields are parsed.
+   */
+  static long toLong(Object obj) {
+    if (obj instanceof Number) {
+      return ((Number) obj).longValue();
+    }
     String str = obj.toString();
-    double d = Double.valueOf(str).doubleValue();
-    return d;
+    try {
+      return Long.parseLong(str);
+    } catch (NumberFormatException ex) {
+      return (long) Double.parseDouble(str);
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DefaultDBCallback;
+import com.mongodb.DefaultDBDecoder;
+
+/**
+ * A DBDecoder for trip update documents. It only stores the top-level fields
+ * that {@link Update#Update(com.mongodb.DBObject)} reads, plus _id. Every
+ * other field, including any sub-document or array and everything in it, is
+ * parsed past without building an object for it.
+ *
+ * @author jlynn
+ */
+public class UpdateDBDecoder extends DefaultDBDecoder {
+
+  public static final DBDecoderFactory FACTORY = new DBDecoderFactory() {
+    @Override
+    public DBDecoder create() {
+      return new UpdateDBDecoder();
+    }
+  };
+
+  private static final Set<String> FIELDS = new HashSet<String>(
+      Arrays.asList(Update.DB_FIELDS));
+
+  static {
+    FIELDS.add("_id");
+  }
+
+  @Override
+  public DBCallback getDBCallback(DBCollection collection) {
+    return new UpdateDBCallback(collection);
+  }
+
+  private static class UpdateDBCallback extends DefaultDBCallback {
+
+    /**
+     * Depth inside an unwanted sub-document or array; 0 outside one.
+     */
+    private int _skipDepth = 0;
+
+    UpdateDBCallback(DBCollection collection) {
+      super(collection);
+    }
+
+    @Override
+    public void objectStart(boolean array, String name) {
+      if (skip(name)) {
+        _skipDepth++;
+        return;
+      }
+      super.objectStart(array, name);
+    }
+
+    @Override
+    public Object objectDone() {
+      if (_skipDepth > 0) {
+        _skipDepth--;
+        return null;
+      }
+      return super.objectDone();
+    }
+
+    @Override
+    protected void _put(String name, Object o) {
+      if (skip(name)) {
+        return;
+      }
+      super._put(name, o);
+    }
+
+    // These three put straight into the current object rather than
+    // through _put.
+
+    @Override
+    public void gotNull(String name) {
+      if (!skip(name)) {
+        super.gotNull(name);
+      }
+    }
+
+    @Override
+    public void gotMinKey(String name) {
+      if (!skip(name)) {
+        super.gotMinKey(name);
+      }
+    }
+
+    @Override
+    public void gotMaxKey(String name) {
+      if (!skip(name)) {
+        super.gotMaxKey(name);
+      }
+    }
+
+    @Override
+    public void reset() {
+      _skipDepth = 0;
+      super.reset();
+    }
+
+    /**
+     * @return whether a field is unwanted: inside an unwanted sub-document,
+     *         or at the top level and not read by Update. A null current
+     *         name means we are in the top-level document.
+     */
+    private boolean skip(String name) {
+      return _skipDepth > 0 || (curName() == null && !FIELDS.contains(name));
+    }
+  }
+}
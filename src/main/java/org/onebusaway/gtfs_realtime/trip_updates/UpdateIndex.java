@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Secondary indexes from stop, trip and route to the vehicles whose
+ * published TripUpdate mentions them. Keys are written as they appear in a
+ * feed query, e.g. "stop=1234", "trip=567" or "route=23". A vehicle is
+ * indexed under its trip, the trip's route if known, and every stop of its
+ * TripUpdate, earlier stops included.
+ *
+ * The {@link UpdateStore} holding the index keeps it current as updates are
+ * added, replaced and expired. Every key touched since the last publish is
+ * recorded as changed, so cached views of unchanged keys can be kept. Like
+ * the store, the index is only used under the store's monitor.
+ *
+ * @author jlynn
+ */
+public class UpdateIndex {
+
+  public static final String STOP = "stop";
+
+  public static final String TRIP = "trip";
+
+  public static final String ROUTE = "route";
+
+  private final Map<String, Set<String>> vehicles = new HashMap<String, Set<String>>();
+
+  /**
+   * Route of each trip, from the GTFS schedule; empty if not loaded.
+   */
+  private Map<String, String> routes = Collections.emptyMap();
+
+  private Set<String> changed = new HashSet<String>();
+
+  public static String key(String type, String id) {
+    return type + "=" + id;
+  }
+
+  public void setRoutes(Map<String, String> routesByTrip) {
+    routes = routesByTrip;
+  }
+
+  /**
+   * @return whether trips can be looked up by route.
+   */
+  public boolean hasRoutes() {
+    return !routes.isEmpty();
+  }
+
+  public void add(Update update) {
+    add(update.getId(), update.getTripId(), stopIds(update));
+  }
+
+  public void remove(Update update) {
+    remove(update.getId(), update.getTripId(), stopIds(update));
+  }
+
+  public void add(String vehicleId, String tripId, List<String> stopIds) {
+    for (String key : keys(tripId, stopIds)) {
+      Set<String> ids = vehicles.get(key);
+      if (ids == null) {
+        ids = new LinkedHashSet<String>();
+        vehicles.put(key, ids);
+      }
+      ids.add(vehicleId);
+      changed.add(key);
+    }
+  }
+
+  public void remove(String vehicleId, String tripId, List<String> stopIds) {
+    for (String key : keys(tripId, stopIds)) {
+      Set<String> ids = vehicles.get(key);
+      if (ids != null && ids.remove(vehicleId) && ids.isEmpty()) {
+        vehicles.remove(key);
+      }
+      changed.add(key);
+    }
+  }
+
+  /**
+   * @return the vehicles indexed under a key, in the order they were added.
+   */
+  public List<String> getVehicleIds(String key) {
+    Set<String> ids = vehicles.get(key);
+    if (ids == null) {
+      return Collections.emptyList();
+    }
+    return new ArrayList<String>(ids);
+  }
+
+  /**
+   * @return the keys touched since the last call.
+   */
+  public Set<String> drainChanged() {
+    Set<String> drained = changed;
+    changed = new HashSet<String>();
+    return drained;
+  }
+
+  private List<String> keys(String tripId, List<String> stopIds) {
+    List<String> keys = new ArrayList<String>(stopIds.size() + 2);
+    if (tripId != null) {
+      keys.add(key(TRIP, tripId));
+      String routeId = routes.get(tripId);
+      if (routeId != null) {
+        keys.add(key(ROUTE, routeId));
+      }
+    }
+    for (String stopId : stopIds) {
+      if (stopId != null) {
+        String key = key(STOP, stopId);
+        if (!keys.contains(key)) {
+          keys.add(key);
+        }
+      }
+    }
+    return keys;
+  }
+
+  private static List<String> stopIds(Update update) {
+    List<String> stopIds = new ArrayList<String>(
+        update.getEarlierStops().size() + 1);
+    for (Update stop : update.getEarlierStops()) {
+      stopIds.add(stop.getStopId());
+    }
+    stopIds.add(update.getStopId());
+    return stopIds;
+  }
+
+  /**
+   * Read the route of each trip from a GTFS trips.txt file.
+   *
+   * @return route ID by trip ID.
+   */
+  public static Map<String, String> readRoutes(File tripsPath)
+      throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(tripsPath), "UTF-8"));
+    try {
+      String line = reader.readLine();
+      if (line == null) {
+        throw new IOException("empty trips file: " + tripsPath);
+      }
+      if (line.startsWith("\uFEFF")) {
+        line = line.substring(1);
+      }
+      List<String> header = splitCsv(line);
+      int routeColumn = header.indexOf("route_id");
+      int tripColumn = header.indexOf("trip_id");
+      if (routeColumn < 0 || tripColumn < 0) {
+        throw new IOException("no route_id and trip_id columns in "
+            + tripsPath);
+      }
+
+      Map<String, String> routes = new HashMap<String, String>();
+      while ((line = reader.readLine()) != null) {
+        List<String> fields = splitCsv(line);
+        if (fields.size() > Math.max(routeColumn, tripColumn)) {
+          routes.put(fields.get(tripColumn), fields.get(routeColumn));
+        }
+      }
+      return routes;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Split one CSV line, honouring double-quoted fields.
+   */
+  private static List<String> splitCsv(String line) {
+    List<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString().trim());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString().trim());
+    return fields;
+  }
+}
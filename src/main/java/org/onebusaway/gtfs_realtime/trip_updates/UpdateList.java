@@ -16,6 +16,14 @@
 package org.onebusaway.gtfs_realtime.trip_updates;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 import javax.inject.Singleton;
 
@@ -31,111 +39,199 @@ import org.onebusway.gtfs_realtime.exporter.GtfsRealtimeLibrary;
  * per vehicle. When a new update is inserted, if it corresponds to a 
  * vehicle already in the list, and has a newer timestamp, then the new 
  * update replaces the old. If the new update does not correspond to
- * any existing vehicles, then add it to the list.
+ * any existing vehicles, then add it to the list. The replacing update
+ * keeps up to maxStopsPerTrip - 1 earlier stops of the same trip, so the
+ * published TripUpdate lists every recent stop-time event.
+ *
+ * An UpdateList is only touched by the ingestion side, which holds its
+ * monitor while mutating it. Readers use the immutable
+ * {@link UpdateSnapshot} published after each refresh.
+ *
+ * Updates are keyed by vehicle ID, so insert/replace is constant time.
+ * A min-heap on departure time lets clearOld() visit only the expired
+ * updates. Replaced updates stay in the heap until they age out and are
+ * skipped at that point.
  * 
  * @author jlynn
  */
 @Singleton
-public class UpdateList {
-  ArrayList<Update> updates = new ArrayList<Update>();
-  ArrayList<Object> busIDs = new ArrayList<Object>();
-
-  public void addUpdate(Update newUpdate) {
+public class UpdateList implements UpdateStore {
+  private final LinkedHashMap<String, Update> updates = new LinkedHashMap<String, Update>();
+  private final PriorityQueue<Update> byTime = new PriorityQueue<Update>(11,
+      new Comparator<Update>() {
+        @Override
+        public int compare(Update a, Update b) {
+          long ta = a.getDepTime();
+          long tb = b.getDepTime();
+          return ta < tb ? -1 : (ta == tb ? 0 : 1);
+        }
+      });
+  private long maxStamp = 0L;
+  private int maxStopsPerTrip = 1;
+  private UpdateIndex index;
+  private final HashMap<String, Long> busLastSeen = new HashMap<String, Long>();
+  private volatile List<String> busIDs = Collections.emptyList();
+
+  public boolean addUpdate(Update newUpdate) {
     /* New vehicle? Add new Update to list.
 	   Old vehicle + new timestamp? Replace old Update w/ new.
 	   Old vehicle + old timestamp? Do not add to list.
      */
     long newTime = newUpdate.getDepTime();
-    String newId = newUpdate.getId();
-    boolean replace = false;
-    boolean addUpdate = true;
-    int iReplace = 0;
-
-    int listLen = updates.size();
-    for (int i = 0; i < listLen; i++) {
-      Update prevUpdate = updates.get(i);
-      long prevTime = prevUpdate.getDepTime();
-      String prevId = prevUpdate.getId();
-
-      if (prevId.equals(newId)) {
-        addUpdate = false;
-        if (prevTime < newTime) {
-          // This bus update replaces a previous one in the feed.
-          iReplace = i;
-          replace = true;
-        }
-      }
+    Update prevUpdate = updates.get(newUpdate.getId());
+
+    if (prevUpdate != null && prevUpdate.getDepTime() >= newTime) {
+      // Old vehicle + old timestamp:
+      return false;
     }
-    if (replace) {
-      // Old vehicle + updated timestamp:
-      updates.set(iReplace, newUpdate);
+
+    // New vehicle, or old vehicle + updated timestamp (the map keeps the
+    // vehicle's original position). Stops already passed on the same trip
+    // are carried over:
+    newUpdate = newUpdate.withEarlierStops(prevUpdate, maxStopsPerTrip);
+    updates.put(newUpdate.getId(), newUpdate);
+    if (index != null) {
+      if (prevUpdate != null) {
+        index.remove(prevUpdate);
+      }
+      index.add(newUpdate);
     }
-    else if (addUpdate) {
-      // New vehicle:
-      updates.add(newUpdate);
+    byTime.add(newUpdate);
+    if (newTime > maxStamp) {
+      maxStamp = newTime;
     }
-    return;
+    markActive(newUpdate.getId(), newTime);
+    return true;
   }
 
   public FeedMessage getUpdateFeedMessage() {
     /**
      * The FeedMessage.Builder is what we will use to build up 
      * our GTFS-realtime feed. Add all updates to the feed
-     * and then build and return the result.
+     * and then build and return the result. Each update's
+     * entity is cached, so only new updates build protobufs.
      */
     FeedMessage.Builder feedMessage = 
         GtfsRealtimeLibrary.createFeedMessageBuilder();
 
-    int listLen = updates.size();
-    for (int i = 0; i < listLen; i++) {
-      Update newUpdate = updates.get(i);
-      FeedEntity.Builder newEnt = newUpdate.getFeedEntityBuilder();
-      feedMessage.addEntity(newEnt);
+    for (Update newUpdate : updates.values()) {
+      feedMessage.addEntity(newUpdate.getFeedEntity());
     }
 
     return feedMessage.build();
   }
 
-  public long maxTime() {
+  public List<FeedEntity> getFeedEntities() {
     /**
-     * Returns latest timestamp of any vehicle updates.
+     * Returns each update's cached entity, in list order.
      */
-    long maxStamp = 0L;
-
-    int listLen = updates.size();
-    for (int i = 0; i < listLen; i++) {
-      Update update = updates.get(i);
-      long stamp = update.getDepTime();
-      if (stamp > maxStamp) {
-        maxStamp = stamp;
-      }
+    List<FeedEntity> entities = new ArrayList<FeedEntity>(updates.size());
+    for (Update update : updates.values()) {
+      entities.add(update.getFeedEntity());
     }
+    return entities;
+  }
+
+  public long maxTime() {
+    /**
+     * Returns latest timestamp of any vehicle updates. Updates are only
+     * ever replaced by newer ones and expired oldest first, so the
+     * running maximum stays valid until the list is emptied.
+     */
     return maxStamp;
   }
 
-  public void setBusIDs(ArrayList<Object> newBusIDs) {
-    busIDs = newBusIDs;
+  public void setMaxStopsPerTrip(int maxStops) {
+    /**
+     * Sets how many StopTimeUpdates each vehicle's trip keeps; 1
+     * publishes only the latest departure.
+     */
+    maxStopsPerTrip = maxStops;
   }
 
-  public ArrayList<Object> getBusIDs() {
-    return busIDs;
+  public void setIndex(UpdateIndex index) {
+    /**
+     * Sets the index kept current by addUpdate and clearOld.
+     */
+    this.index = index;
+  }
+
+  public void addDiscoveredBus(String busID, long time) {
+    /**
+     * Lists a bus found by discovery. A bus already listed keeps its
+     * last-seen time, which only departures advance.
+     */
+    if (!busLastSeen.containsKey(busID)) {
+      busLastSeen.put(busID, time);
+    }
   }
 
-  public void clearOld(long ageLim) {
-    Long timeNow = System.currentTimeMillis();
+  private void markActive(String busID, long time) {
+    /**
+     * Records that a bus departed at the given time.
+     */
+    Long prev = busLastSeen.get(busID);
+    if (prev == null || prev < time) {
+      busLastSeen.put(busID, time);
+    }
+  }
 
-    ArrayList<Update> newUpdates = new ArrayList<Update>();
+  public void clearInactive(long ageLim) {
+    /**
+     * Drops buses not seen within ageLim and republishes the bus list
+     * as an unmodifiable copy, so a fetch iterating the old list on
+     * another thread is unaffected.
+     */
+    long timeNow = System.currentTimeMillis();
+    Iterator<Map.Entry<String, Long>> it = busLastSeen.entrySet().iterator();
+    while (it.hasNext()) {
+      if (timeNow - it.next().getValue() >= ageLim) {
+        it.remove();
+      }
+    }
+    busIDs = Collections.unmodifiableList(
+        new ArrayList<String>(busLastSeen.keySet()));
+  }
 
-    for (Update update : updates) {
-      if (timeNow - update.getDepTime() < ageLim) {
-        newUpdates.add(update);
+  public List<String> getBusIDs() {
+    return busIDs;
+  }
+
+  public int clearOld(long ageLim) {
+    /**
+     * Removes updates older than ageLim and returns how many were
+     * removed.
+     */
+    long timeNow = System.currentTimeMillis();
+    int removed = 0;
+
+    while (!byTime.isEmpty()
+        && timeNow - byTime.peek().getDepTime() >= ageLim) {
+      Update update = byTime.poll();
+      // Skip heap entries that have since been replaced:
+      if (updates.get(update.getId()) == update) {
+        updates.remove(update.getId());
+        if (index != null) {
+          index.remove(update);
+        }
+        removed++;
       }
     }
 
-    updates = newUpdates;
+    if (updates.isEmpty()) {
+      maxStamp = 0L;
+    }
+    return removed;
+  }
+
+  public Map<String, Update> getUpdatesById() {
+    /**
+     * Returns a copy of the current updates, keyed by vehicle ID.
+     */
+    return Collections.unmodifiableMap(new HashMap<String, Update>(updates));
   }
 
   public int getCount() {
     return updates.size();
   }
-}
\ No newline at end of file
+}
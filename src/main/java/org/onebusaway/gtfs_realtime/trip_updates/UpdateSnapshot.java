@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.util.Collections;
+import java.util.Map;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Everything one publish of the feed produced: the vehicles it was built
+ * from, the feed message and its encoded bytes. Snapshots are immutable and
+ * handed from the ingestion thread to readers through a single atomic
+ * reference, so readers never lock and never see a half-updated feed.
+ *
+ * @author jlynn
+ */
+public class UpdateSnapshot {
+
+  private final long version;
+  private final Map<String, Update> vehicles;
+  private final EncodedFeed encodedFeed;
+
+  public UpdateSnapshot(Map<String, Update> vehicles, EncodedFeed encodedFeed) {
+    this.version = encodedFeed.getVersion();
+    this.vehicles = vehicles;
+    this.encodedFeed = encodedFeed;
+  }
+
+  public static UpdateSnapshot empty(FeedMessage feed) {
+    return new UpdateSnapshot(Collections.<String, Update>emptyMap(),
+        EncodedFeed.encode(feed));
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the published vehicles, by vehicle ID (unmodifiable).
+   */
+  public Map<String, Update> getVehicles() {
+    return vehicles;
+  }
+
+  public FeedMessage getFeedMessage() {
+    return encodedFeed.getFeedMessage();
+  }
+
+  public EncodedFeed getEncodedFeed() {
+    return encodedFeed;
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads and writes the vehicle state and high-water mark to a compact local
+ * file, so a restarted service can serve a feed right away and then catch up
+ * from Mongo. The file is a length-prefixed binary record stream written
+ * with DataOutputStream. It is written to a temporary file, synced to disk
+ * and then atomically moved into place, so a crash mid-write or just after
+ * the move never leaves a truncated snapshot.
+ *
+ * @author jlynn
+ */
+public class UpdateSnapshotFile {
+
+  private static final int MAGIC = 0x54555053; // "TUPS"
+
+  private static final int FORMAT_VERSION = 1;
+
+  /**
+   * Contents of a snapshot file.
+   */
+  public static class Contents {
+    private final long highWaterMark;
+    private final List<Update> updates;
+
+    Contents(long highWaterMark, List<Update> updates) {
+      this.highWaterMark = highWaterMark;
+      this.updates = updates;
+    }
+
+    public long getHighWaterMark() {
+      return highWaterMark;
+    }
+
+    public List<Update> getUpdates() {
+      return updates;
+    }
+  }
+
+  public static void write(File path, long highWaterMark,
+      Collection<Update> updates) throws IOException {
+    File tmp = new File(path.getPath() + ".tmp");
+    FileOutputStream file = new FileOutputStream(tmp);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        file));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeLong(highWaterMark);
+      out.writeInt(updates.size());
+      for (Update update : updates) {
+        writeUpdate(out, update);
+        out.writeInt(update.getEarlierStops().size());
+        for (Update stop : update.getEarlierStops()) {
+          writeUpdate(out, stop);
+        }
+      }
+      out.flush();
+      file.getFD().sync();
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  public static Contents read(File path) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(path)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+        throw new IOException("not a trip updates snapshot: " + path);
+      }
+      long highWaterMark = in.readLong();
+      int count = in.readInt();
+      List<Update> updates = new ArrayList<Update>(count);
+      for (int i = 0; i < count; i++) {
+        Update update = readUpdate(in);
+        int stops = in.readInt();
+        if (stops > 0) {
+          List<Update> earlierStops = new ArrayList<Update>(stops);
+          for (int j = 0; j < stops; j++) {
+            earlierStops.add(readUpdate(in));
+          }
+          update = update.withEarlierStops(
+              Collections.unmodifiableList(earlierStops));
+        }
+        updates.add(update);
+      }
+      return new Contents(highWaterMark, updates);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeUpdate(DataOutputStream out, Update update)
+      throws IOException {
+    writeString(out, update.getId());
+    writeString(out, update.getTripId());
+    writeString(out, update.getStopId());
+    out.writeInt(update.getStopSequence());
+    out.writeLong(update.getDepTime());
+    out.writeLong(update.getDepDelay());
+  }
+
+  private static Update readUpdate(DataInputStream in) throws IOException {
+    String id = readString(in);
+    String tripId = readString(in);
+    String stopId = readString(in);
+    int stopSequence = in.readInt();
+    long depTime = in.readLong();
+    long depDelay = in.readLong();
+    return new Update(id, tripId, stopId, stopSequence, depTime, depDelay);
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+      throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
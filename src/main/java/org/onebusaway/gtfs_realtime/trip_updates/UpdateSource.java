@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where departure updates come from. {@link GtfsRealtimeProviderImpl} polls
+ * or tails a source and merges what it returns into its {@link UpdateStore};
+ * it never talks to the backing store directly.
+ *
+ * @author jlynn
+ */
+public interface UpdateSource {
+
+  /**
+   * Receives updates from {@link UpdateSource#tailUpdates}.
+   */
+  interface UpdateHandler {
+    void handleUpdate(Update update);
+  }
+
+  /**
+   * @param metrics metrics to record query and decode timings in.
+   */
+  void setMetrics(RefreshMetrics metrics);
+
+  /**
+   * Check the source is usable before the first fetch.
+   */
+  void open() throws IOException;
+
+  /**
+   * @return whether {@link #getLatestUpdates} needs the list of active
+   *         vehicle IDs.
+   */
+  boolean requiresVehicleIds();
+
+  /**
+   * @param vehicleIds vehicles known to be active; only used if
+   *          {@link #requiresVehicleIds()} is true.
+   * @param minTime lower bound (inclusive) on departure time, in ms.
+   * @return the latest departure of each vehicle.
+   */
+  List<Update> getLatestUpdates(List<String> vehicleIds, long minTime)
+      throws IOException;
+
+  /**
+   * @param since lower bound (exclusive) on departure time, in ms.
+   * @return every departure after since.
+   */
+  List<Update> getUpdatesSince(long since) throws IOException;
+
+  /**
+   * @param since lower bound (exclusive) on departure time, in ms.
+   * @return IDs of the vehicles that departed after since.
+   */
+  List<String> getVehicleIdsSince(long since) throws IOException;
+
+  /**
+   * @return whether {@link #tailUpdates} is supported.
+   */
+  boolean canTail();
+
+  /**
+   * Pass each departure after since to the handler as it arrives. Returns
+   * when the source runs dry, so the caller can call it again.
+   *
+   * @param since lower bound (exclusive) on departure time, in ms.
+   */
+  void tailUpdates(long since, UpdateHandler handler) throws IOException,
+      InterruptedException;
+
+  /**
+   * Release any threads or connections held by the source.
+   */
+  void close();
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * The latest update of each vehicle, as merged by the ingestion side of
+ * {@link GtfsRealtimeProviderImpl}. Implementations are not thread-safe;
+ * callers hold the store's monitor while using it.
+ *
+ * @author jlynn
+ */
+public interface UpdateStore {
+
+  /**
+   * @return true if the update was new for its vehicle and was stored.
+   */
+  boolean addUpdate(Update newUpdate);
+
+  /**
+   * @return a FULL_DATASET feed with one entity per vehicle.
+   */
+  FeedMessage getUpdateFeedMessage();
+
+  /**
+   * @return one entity per vehicle, for streaming the feed without building
+   *         a FeedMessage.
+   */
+  List<FeedEntity> getFeedEntities();
+
+  /**
+   * @return the latest departure time stored, in ms, or 0 if empty.
+   */
+  long maxTime();
+
+  /**
+   * @param maxStops most StopTimeUpdates to keep per trip; set before any
+   *          updates are added.
+   */
+  void setMaxStopsPerTrip(int maxStops);
+
+  /**
+   * @param index index kept current as updates are added, replaced and
+   *          expired; set before any updates are added.
+   */
+  void setIndex(UpdateIndex index);
+
+  /**
+   * Add a bus found by discovery to the bus list, as seen at the given time,
+   * unless it is already listed. Discovery never refreshes a listed bus;
+   * only its departures keep it active.
+   */
+  void addDiscoveredBus(String busID, long time);
+
+  /**
+   * Drop buses not seen within ageLim from the bus list.
+   */
+  void clearInactive(long ageLim);
+
+  /**
+   * @return an unmodifiable list of active bus IDs.
+   */
+  List<String> getBusIDs();
+
+  /**
+   * Remove updates older than ageLim.
+   *
+   * @return the number of updates removed.
+   */
+  int clearOld(long ageLim);
+
+  /**
+   * @return an unmodifiable copy of the current updates, keyed by vehicle
+   *         ID. An unchanged vehicle keeps the same Update object from one
+   *         call to the next.
+   */
+  Map<String, Update> getUpdatesById();
+
+  /**
+   * @return the number of vehicles with an update.
+   */
+  int getCount();
+}
@@ -0,0 +1,505 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.onebusaway.gtfs_realtime.trip_updates.EncodedFeed.Encoding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the trip updates feed at the configured URL. Every request gets the
+ * {@link EncodedFeed} last published by {@link GtfsRealtimeProviderImpl}, so
+ * the feed is never serialized per request. Clients that send the current
+ * entity tag in If-None-Match get a 304 with no body. The tag covers only
+ * the feed's entities, so a republish that changes nothing but the header
+ * timestamp still gets a 304. The gzip or deflate variant is chosen by the
+ * weights in Accept-Encoding; each is compressed at most once per publish
+ * rather than per request. Every response names the feed version in
+ * X-Feed-Version. Clients that pass it back as "?since=version" get a
+ * DIFFERENTIAL feed when the provider keeps a delta history. Refresh metrics
+ * are served in Prometheus text format at the metrics path on the same port.
+ * Appending "?debug" to
+ * the URL returns a human-readable version of the feed.
+ *
+ * With filtered views enabled, "?stop=id", "?trip=id" or "?route=id"
+ * returns only the vehicles indexed under that ID, from a per-ID encoded
+ * feed the provider caches until the ID's vehicles change.
+ *
+ * When named feeds are added, each is served at the URL path plus "/name"
+ * instead, and the metrics of all of them are served together, labelled by
+ * feed.
+ *
+ * Requests are handled by the JDK HttpServer on a fixed thread pool, or, in
+ * non-blocking mode, by {@link NioUpdatesServer} on a few event loops. Both
+ * build their responses here and record request latency, whose quantiles
+ * are served with the metrics. Latency runs from when the server reads the
+ * request off its connection, so in JDK mode it includes the time the
+ * request waits for a free pool thread.
+ *
+ * @author jlynn
+ */
+@Singleton
+public class UpdatesHttpServer {
+
+  private static final Logger _log = LoggerFactory.getLogger(UpdatesHttpServer.class);
+
+  private static final String CONTENT_TYPE = "application/x-google-protobuf";
+
+  /**
+   * Query parameters selecting a filtered view of the feed.
+   */
+  private static final String[] FILTERS = {UpdateIndex.STOP, UpdateIndex.TRIP,
+      UpdateIndex.ROUTE};
+
+  private static final String METRICS_CONTENT_TYPE =
+      "text/plain; version=0.0.4; charset=utf-8";
+
+  /**
+   * A response built independently of the server handling the request.
+   */
+  static class Response {
+    final int status;
+    final Map<String, String> headers = new LinkedHashMap<String, String>();
+    final ByteBuffer body;
+
+    Response(int status, ByteBuffer body) {
+      this.status = status;
+      this.body = body;
+    }
+  }
+
+  private GtfsRealtimeProviderImpl _provider;
+
+  /**
+   * Named feeds, served instead of _provider when not empty.
+   */
+  private final Map<String, GtfsRealtimeProviderImpl> _feeds =
+      new LinkedHashMap<String, GtfsRealtimeProviderImpl>();
+
+  /**
+   * Feed served at each path, built by start().
+   */
+  private final Map<String, GtfsRealtimeProviderImpl> _routes =
+      new LinkedHashMap<String, GtfsRealtimeProviderImpl>();
+
+  private URL _url;
+
+  /**
+   * Path on the feed's host and port where metrics are served, or null.
+   */
+  private String _metricsPath = "/metrics";
+
+  /**
+   * Number of threads handling requests, or event loops when non-blocking.
+   */
+  private int _threads = 4;
+
+  /**
+   * Whether requests are served by event loops instead of a thread each.
+   */
+  private boolean _nonBlocking = false;
+
+  private final LatencyRecorder _latency = new LatencyRecorder(
+      "feed request", 60 * 1000);
+
+  private HttpServer _server;
+
+  private ExecutorService _executor;
+
+  /**
+   * When the request being handled on this thread was handed to the pool,
+   * in JDK mode.
+   */
+  private final ThreadLocal<Long> _queuedAt = new ThreadLocal<Long>();
+
+  private NioUpdatesServer _nioServer;
+
+  @Inject
+  public void setProvider(GtfsRealtimeProviderImpl provider) {
+    _provider = provider;
+  }
+
+  public void setUrl(URL url) {
+    _url = url;
+  }
+
+  public void setMetricsPath(String metricsPath) {
+    _metricsPath = metricsPath;
+  }
+
+  public void setThreads(int threads) {
+    _threads = threads;
+  }
+
+  /**
+   * @param serverMode "jdk" to serve requests from a thread pool, or "nio" to
+   *          serve them from a few event loops that write the encoded feed
+   *          straight to the socket.
+   */
+  public void setServerMode(String serverMode) {
+    if (serverMode.equals("jdk"))
+      _nonBlocking = false;
+    else if (serverMode.equals("nio"))
+      _nonBlocking = true;
+    else
+      throw new IllegalArgumentException("Unknown server mode: " + serverMode);
+  }
+
+  /**
+   * Serve a named feed at the URL path plus "/name".
+   */
+  public void addFeed(String name, GtfsRealtimeProviderImpl provider) {
+    _feeds.put(name, provider);
+  }
+
+  @PostConstruct
+  public void start() throws IOException {
+    if (_url == null) {
+      return;
+    }
+    int port = _url.getPort() == -1 ? 80 : _url.getPort();
+    _log.info("serving trip updates at " + _url);
+
+    if (_feeds.isEmpty()) {
+      _routes.put(_url.getPath(), _provider);
+    } else {
+      String base = _url.getPath();
+      if (base.endsWith("/")) {
+        base = base.substring(0, base.length() - 1);
+      }
+      for (Map.Entry<String, GtfsRealtimeProviderImpl> feed : _feeds.entrySet()) {
+        _log.info("serving feed " + feed.getKey() + " at " + base + "/"
+            + feed.getKey());
+        _routes.put(base + "/" + feed.getKey(), feed.getValue());
+      }
+    }
+    if (_metricsPath != null && _routes.containsKey(_metricsPath)) {
+      _metricsPath = null;
+    }
+
+    if (_nonBlocking) {
+      _nioServer = new NioUpdatesServer(this, new InetSocketAddress(port),
+          _threads);
+      _nioServer.start();
+      return;
+    }
+
+    _executor = Executors.newFixedThreadPool(_threads);
+    _server = HttpServer.create(new InetSocketAddress(port), 0);
+    for (Map.Entry<String, GtfsRealtimeProviderImpl> route : _routes.entrySet()) {
+      _server.createContext(route.getKey(), new FeedHandler(route.getValue()));
+    }
+    if (_metricsPath != null) {
+      _server.createContext(_metricsPath, new MetricsHandler());
+    }
+    _server.setExecutor(new Executor() {
+      @Override
+      public void execute(final Runnable exchange) {
+        // The server hands over each request as it starts reading it.
+        final long queued = System.nanoTime();
+        _executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            _queuedAt.set(queued);
+            try {
+              exchange.run();
+            } finally {
+              _queuedAt.remove();
+            }
+          }
+        });
+      }
+    });
+    _server.start();
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_server != null) {
+      _server.stop(0);
+      _executor.shutdownNow();
+    }
+    if (_nioServer != null) {
+      _nioServer.stop();
+    }
+  }
+
+  /**
+   * @return latency of feed and metrics requests.
+   */
+  public LatencyRecorder getLatency() {
+    return _latency;
+  }
+
+  /**
+   * Build the response to a request. Paths are matched exactly.
+   *
+   * @param query the raw query string, or null.
+   * @param acceptEncoding the Accept-Encoding header, or null.
+   * @param ifNoneMatch the If-None-Match header, or null.
+   * @param direct whether the body should be a direct buffer.
+   */
+  Response respond(String path, String query, String acceptEncoding,
+      String ifNoneMatch, boolean direct) throws IOException {
+    GtfsRealtimeProviderImpl provider = _routes.get(path);
+    if (provider != null) {
+      return respondFeed(provider, query, acceptEncoding, ifNoneMatch, direct);
+    }
+    if (_metricsPath != null && _metricsPath.equals(path)) {
+      return respondMetrics();
+    }
+    return new Response(404, null);
+  }
+
+  private Response respondFeed(GtfsRealtimeProviderImpl provider,
+      String query, String acceptEncoding, String ifNoneMatch, boolean direct)
+      throws IOException {
+    String since = getQueryParameter(query, "since");
+
+    String filter = null;
+    String filterId = null;
+    for (String type : FILTERS) {
+      String id = getQueryParameter(query, type);
+      if (id != null) {
+        if (filter != null) {
+          return new Response(400, null);
+        }
+        filter = type;
+        filterId = id;
+      }
+    }
+
+    EncodedFeed feed;
+    if (filter != null) {
+      feed = provider.getFilteredFeed(filter, filterId);
+      if (feed == null) {
+        return new Response(400, null);
+      }
+    } else if (since != null) {
+      try {
+        feed = provider.getEncodedFeedSince(Long.parseLong(since));
+      } catch (NumberFormatException ex) {
+        return new Response(400, null);
+      }
+    } else {
+      feed = provider.getEncodedFeed();
+    }
+
+    if (getQueryParameter(query, "debug") != null) {
+      byte[] text = feed.getFeedMessage().toString().getBytes("UTF-8");
+      Response response = new Response(200, ByteBuffer.wrap(text));
+      response.headers.put("X-Feed-Version", Long.toString(feed.getVersion()));
+      response.headers.put("Content-Type", "text/plain; charset=utf-8");
+      return response;
+    }
+
+    Encoding encoding = EncodedFeed.negotiate(acceptEncoding);
+    String etag = feed.getETag(encoding);
+    Response response;
+    if (matches(ifNoneMatch, etag)) {
+      response = new Response(304, null);
+    } else {
+      response = new Response(200, direct ? feed.getDirectBytes(encoding)
+          : feed.getBytes(encoding));
+    }
+    response.headers.put("X-Feed-Version", Long.toString(feed.getVersion()));
+    response.headers.put("ETag", etag);
+    response.headers.put("Vary", "Accept-Encoding");
+    if (response.body != null) {
+      response.headers.put("Content-Type", CONTENT_TYPE);
+      if (encoding != Encoding.IDENTITY) {
+        response.headers.put("Content-Encoding", encoding.getName());
+      }
+    }
+    return response;
+  }
+
+  private Response respondMetrics() throws IOException {
+    String metrics;
+    if (_feeds.isEmpty()) {
+      metrics = _provider.getMetrics().render();
+    } else {
+      Map<String, RefreshMetrics> byFeed =
+          new LinkedHashMap<String, RefreshMetrics>();
+      for (Map.Entry<String, GtfsRealtimeProviderImpl> feed : _feeds.entrySet()) {
+        byFeed.put(feed.getKey(), feed.getValue().getMetrics());
+      }
+      metrics = RefreshMetrics.render(byFeed);
+    }
+    StringBuilder out = new StringBuilder(metrics);
+    _latency.render(out, "trip_updates_http_request_seconds",
+        "Request latency; quantiles over the last full minute.");
+
+    Response response = new Response(200,
+        ByteBuffer.wrap(out.toString().getBytes("UTF-8")));
+    response.headers.put("Content-Type", METRICS_CONTENT_TYPE);
+    return response;
+  }
+
+  private class FeedHandler implements HttpHandler {
+
+    private final GtfsRealtimeProviderImpl _feedProvider;
+
+    FeedHandler(GtfsRealtimeProviderImpl provider) {
+      _feedProvider = provider;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      long start = requestStart();
+      try {
+        Headers request = exchange.getRequestHeaders();
+        send(exchange, respondFeed(_feedProvider,
+            exchange.getRequestURI().getQuery(),
+            request.getFirst("Accept-Encoding"),
+            request.getFirst("If-None-Match"), false));
+      } finally {
+        exchange.close();
+        _latency.recordSince(start);
+      }
+    }
+  }
+
+  private class MetricsHandler implements HttpHandler {
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      long start = requestStart();
+      try {
+        send(exchange, respondMetrics());
+      } finally {
+        exchange.close();
+        _latency.recordSince(start);
+      }
+    }
+  }
+
+  /**
+   * @return when the request on this thread was queued for the pool, or now
+   *         if it was not.
+   */
+  private long requestStart() {
+    Long queued = _queuedAt.get();
+    return queued != null ? queued : System.nanoTime();
+  }
+
+  private static void send(HttpExchange exchange, Response response)
+      throws IOException {
+    Headers headers = exchange.getResponseHeaders();
+    for (Map.Entry<String, String> header : response.headers.entrySet()) {
+      headers.set(header.getKey(), header.getValue());
+    }
+    if (response.body == null) {
+      exchange.sendResponseHeaders(response.status, -1);
+      return;
+    }
+    ByteBuffer body = response.body;
+    exchange.sendResponseHeaders(response.status, body.remaining());
+    if ("HEAD".equals(exchange.getRequestMethod())) {
+      return;
+    }
+    WritableByteChannel out = Channels.newChannel(exchange.getResponseBody());
+    while (body.hasRemaining()) {
+      out.write(body);
+    }
+  }
+
+  /**
+   * Weak comparison of an entity tag against an If-None-Match header, which
+   * may be "*" or a comma-separated list of tags, each possibly weak (W/).
+   *
+   * @param ifNoneMatch the If-None-Match header, or null.
+   * @param etag the current quoted entity tag.
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    if (ifNoneMatch.trim().equals("*")) {
+      return true;
+    }
+    String opaque = stripWeak(etag);
+    int i = 0;
+    int n = ifNoneMatch.length();
+    while (i < n) {
+      char c = ifNoneMatch.charAt(i);
+      if (c == ',' || c == ' ' || c == '\t') {
+        i++;
+        continue;
+      }
+      // A tag runs to the closing quote, since tags may contain commas.
+      int start = i;
+      if (ifNoneMatch.startsWith("W/", i)) {
+        i += 2;
+      }
+      if (i < n && ifNoneMatch.charAt(i) == '"') {
+        int close = ifNoneMatch.indexOf('"', i + 1);
+        i = close < 0 ? n : close + 1;
+      } else {
+        int comma = ifNoneMatch.indexOf(',', i);
+        i = comma < 0 ? n : comma;
+      }
+      if (stripWeak(ifNoneMatch.substring(start, i).trim()).equals(opaque)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String stripWeak(String tag) {
+    return tag.startsWith("W/") ? tag.substring(2) : tag;
+  }
+
+  /**
+   * @return the value of the named query parameter, "" if it has no value,
+   *         or null if it is absent.
+   */
+  static String getQueryParameter(String query, String name) {
+    if (query == null) {
+      return null;
+    }
+    for (String param : query.split("&")) {
+      int eq = param.indexOf('=');
+      String key = eq < 0 ? param : param.substring(0, eq);
+      if (key.equals(name)) {
+        return eq < 0 ? "" : param.substring(eq + 1);
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Readers call getEncodedFeed and getEncodedFeedSince without locking while
+ * refreshes merge new departures and expire old ones. Every feed a reader
+ * gets must be complete and consistent, and versions must never go back.
+ *
+ * @author jlynn
+ */
+public class ConcurrentReadStressTest {
+
+  private static final int VEHICLES = 200;
+
+  private static final int READERS = 4;
+
+  private static final long DURATION = 2000;
+
+  private final ConcurrentLinkedQueue<Throwable> failures =
+      new ConcurrentLinkedQueue<Throwable>();
+
+  private final AtomicBoolean running = new AtomicBoolean(true);
+
+  private final AtomicLong reads = new AtomicLong();
+
+  private FakeUpdateSource source;
+
+  private GtfsRealtimeProviderImpl provider;
+
+  @Before
+  public void setUp() {
+    source = new FakeUpdateSource(false);
+    provider = new GtfsRealtimeProviderImpl();
+    provider.setUpdateSource(source);
+    // Short, so every refresh also expires vehicles.
+    provider.setAgeLim("300");
+    provider.setRefreshInterval(3600);
+    provider.setDifferentialHistory(8);
+    provider.start();
+  }
+
+  @After
+  public void tearDown() {
+    provider.stop();
+  }
+
+  @Test
+  public void testReadersSeeConsistentFeedsDuringRefresh() throws Exception {
+    List<Thread> threads = new ArrayList<Thread>();
+    threads.add(new Thread(new Writer()));
+    for (int i = 0; i < READERS; i++) {
+      threads.add(new Thread(new Reader(i)));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    Thread.sleep(DURATION);
+    running.set(false);
+    for (Thread thread : threads) {
+      thread.join(10000);
+    }
+
+    if (!failures.isEmpty()) {
+      throw new AssertionError(failures.peek());
+    }
+    assertTrue(provider.getSnapshot().getVersion() > 10);
+    assertTrue(reads.get() > 0);
+  }
+
+  /**
+   * Each round gives a random subset of vehicles a new departure and
+   * refreshes; vehicles left out expire after the age limit.
+   */
+  private class Writer implements Runnable {
+
+    @Override
+    public void run() {
+      Random random = new Random(1);
+      try {
+        while (running.get()) {
+          long now = System.currentTimeMillis();
+          source.clear();
+          for (int i = 0; i < VEHICLES; i++) {
+            if (random.nextInt(3) == 0) {
+              source.add(new Update(Integer.toString(i), "t" + i,
+                  "s" + random.nextInt(50), 1, now, random.nextInt(600)));
+            }
+          }
+          provider.refreshUpdates();
+        }
+      } catch (Throwable t) {
+        failures.add(t);
+      }
+    }
+  }
+
+  private class Reader implements Runnable {
+
+    private final Random random;
+
+    Reader(int seed) {
+      random = new Random(seed);
+    }
+
+    @Override
+    public void run() {
+      long lastVersion = 0;
+      try {
+        while (running.get()) {
+          UpdateSnapshot snapshot = provider.getSnapshot();
+          long version = snapshot.getVersion();
+          assertTrue(version >= lastVersion);
+          lastVersion = version;
+
+          FeedMessage full = parse(snapshot.getEncodedFeed());
+          assertEquals(snapshot.getVehicles().size(), full.getEntityCount());
+          for (FeedEntity entity : full.getEntityList()) {
+            assertTrue(snapshot.getVehicles().containsKey(entity.getId()));
+          }
+
+          EncodedFeed current = provider.getEncodedFeed();
+          assertTrue(current.getVersion() >= version);
+          parse(current);
+
+          long since = Math.max(0, version - random.nextInt(12));
+          EncodedFeed diff = provider.getEncodedFeedSince(since);
+          assertTrue(diff.getVersion() >= version);
+          Set<String> ids = new HashSet<String>();
+          for (FeedEntity entity : parse(diff).getEntityList()) {
+            assertTrue("duplicate entity " + entity.getId(),
+                ids.add(entity.getId()));
+          }
+          reads.incrementAndGet();
+        }
+      } catch (Throwable t) {
+        failures.add(t);
+      }
+    }
+  }
+
+  private static FeedMessage parse(EncodedFeed feed) throws Exception {
+    ByteBuffer buf = feed.getBytes();
+    byte[] raw = new byte[buf.remaining()];
+    buf.get(raw);
+    assertEquals(feed.getLength(), raw.length);
+    return FeedMessage.parseFrom(raw);
+  }
+}
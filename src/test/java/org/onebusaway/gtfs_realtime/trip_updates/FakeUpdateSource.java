@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * An in-memory {@link UpdateSource} for tests. It holds a list of departures
+ * in the order they were added, duplicates and all. In aggregate mode,
+ * getLatestUpdates runs {@link MongoUpdateSource#aggregatePipeline(long)}
+ * over them with {@link PipelineEvaluator} and decodes the groups as the
+ * Mongo source does; in per-bus mode it returns the latest departure of each
+ * vehicle asked for, as the per-bus queries do. Batches offered for tailing are handed out one per
+ * tailUpdates call.
+ *
+ * @author jlynn
+ */
+public class FakeUpdateSource implements UpdateSource {
+
+  private final List<Update> departures = new ArrayList<Update>();
+
+  private final boolean perBus;
+
+  private final BlockingQueue<List<Update>> batches =
+      new LinkedBlockingQueue<List<Update>>();
+
+  private final List<Long> tailSince = new ArrayList<Long>();
+
+  public FakeUpdateSource(boolean perBus) {
+    this.perBus = perBus;
+  }
+
+  public synchronized void add(Update update) {
+    departures.add(update);
+  }
+
+  public synchronized void clear() {
+    departures.clear();
+  }
+
+  /**
+   * Queue a batch for the next tailUpdates call to deliver.
+   */
+  public void offerBatch(List<Update> batch) {
+    batches.add(batch);
+  }
+
+  /**
+   * @return the since argument of every tailUpdates call so far.
+   */
+  public synchronized List<Long> getTailSince() {
+    return new ArrayList<Long>(tailSince);
+  }
+
+  @Override
+  public void setMetrics(RefreshMetrics metrics) {
+  }
+
+  @Override
+  public void open() {
+  }
+
+  @Override
+  public boolean requiresVehicleIds() {
+    return perBus;
+  }
+
+  @Override
+  public synchronized List<Update> getLatestUpdates(List<String> vehicleIds,
+      long minTime) {
+    List<Update> found = new ArrayList<Update>();
+    if (!perBus) {
+      for (DBObject group : PipelineEvaluator.run(
+          MongoUpdateSource.aggregatePipeline(minTime), documents())) {
+        found.add(new Update(group));
+      }
+      return found;
+    }
+
+    Map<String, Update> latest = new LinkedHashMap<String, Update>();
+    for (Update update : departures) {
+      Update prev = latest.get(update.getId());
+      if (prev == null || prev.getDepTime() < update.getDepTime()) {
+        latest.put(update.getId(), update);
+      }
+    }
+    for (String id : vehicleIds) {
+      Update update = latest.get(id);
+      if (update != null) {
+        found.add(update);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @return the departures as the documents the collection would hold.
+   */
+  private List<DBObject> documents() {
+    List<DBObject> docs = new ArrayList<DBObject>(departures.size());
+    for (Update update : departures) {
+      docs.add(new BasicDBObject("device_id", update.getId())
+          .append("type", 1)
+          .append("trip_id", update.getTripId())
+          .append("stop_id", update.getStopId())
+          .append("stop_sequence", update.getStopSequence())
+          .append("time", update.getDepTime())
+          .append("delay", update.getDepDelay()));
+    }
+    return docs;
+  }
+
+  @Override
+  public synchronized List<Update> getUpdatesSince(long since) {
+    List<Update> found = new ArrayList<Update>();
+    for (Update update : departures) {
+      if (update.getDepTime() > since) {
+        found.add(update);
+      }
+    }
+    return found;
+  }
+
+  @Override
+  public synchronized List<String> getVehicleIdsSince(long since) {
+    LinkedHashSet<String> ids = new LinkedHashSet<String>();
+    for (Update update : departures) {
+      if (update.getDepTime() > since) {
+        ids.add(update.getId());
+      }
+    }
+    return new ArrayList<String>(ids);
+  }
+
+  @Override
+  public boolean canTail() {
+    return true;
+  }
+
+  @Override
+  public void tailUpdates(long since, UpdateHandler handler)
+      throws InterruptedException {
+    synchronized (this) {
+      tailSince.add(since);
+    }
+    List<Update> batch = batches.poll(100, TimeUnit.MILLISECONDS);
+    if (batch == null) {
+      return;
+    }
+    for (Update update : batch) {
+      if (update.getDepTime() > since) {
+        handler.handleUpdate(update);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+
+/**
+ * The streamed encoding must be byte for byte what FeedMessage.toByteArray()
+ * gives, since clients and entity tags see those bytes, and the compressed
+ * copies must inflate back to them.
+ *
+ * @author jlynn
+ */
+public class FeedWriterTest {
+
+  @Test
+  public void testSameBytesAsFeedMessage() throws IOException {
+    FeedHeader header = FeedHeader.newBuilder().setGtfsRealtimeVersion("1.0")
+        .setIncrementality(Incrementality.DIFFERENTIAL)
+        .setTimestamp(1400000000L).build();
+    List<FeedEntity> entities = entities();
+    byte[] expected = FeedMessage.newBuilder().setHeader(header)
+        .addAllEntity(entities).build().toByteArray();
+
+    assertArrayEquals(expected, FeedWriter.toByteArray(header, entities));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FeedWriter.writeTo(out, header, entities);
+    assertArrayEquals(expected, out.toByteArray());
+
+    EncodedFeed encoded = EncodedFeed.encode(header, entities, 1L);
+    assertArrayEquals(expected, bytes(encoded, EncodedFeed.Encoding.IDENTITY));
+    assertArrayEquals(expected, encoded.getFeedMessage().toByteArray());
+  }
+
+  @Test
+  public void testEmptyFeed() {
+    FeedHeader header = FeedHeader.newBuilder().setGtfsRealtimeVersion("1.0")
+        .build();
+    List<FeedEntity> none = Collections.emptyList();
+    assertArrayEquals(FeedMessage.newBuilder().setHeader(header).build()
+        .toByteArray(), FeedWriter.toByteArray(header, none));
+  }
+
+  @Test
+  public void testCompressedCopiesInflate() throws IOException {
+    Random random = new Random(42);
+    for (int size : new int[] {0, 1, 1000, 100 * 1024, 1024 * 1024}) {
+      byte[] raw = new byte[size];
+      random.nextBytes(raw);
+      assertArrayEquals(raw, readAll(new GZIPInputStream(
+          new ByteArrayInputStream(FeedWriter.gzip(raw)))));
+      assertArrayEquals(raw, readAll(new InflaterInputStream(
+          new ByteArrayInputStream(FeedWriter.deflate(raw)))));
+    }
+  }
+
+  /**
+   * Trip updates with one and several stops, a deleted entity, and a hand
+   * built entity with both arrival and departure events.
+   */
+  private static List<FeedEntity> entities() {
+    List<FeedEntity> entities = new ArrayList<FeedEntity>();
+    entities.add(new Update("1", "t1", "s1", 1, 1400000000000L, 30)
+        .getFeedEntity());
+    Update earlier = new Update("2", "t2", "s1", 1, 1399999900000L, -15);
+    Update history = new Update("2", "t2", "s2", 2, 1399999950000L, 0);
+    entities.add(new Update("2", "t2", "s3", 3, 1400000000000L, 5)
+        .withEarlierStops(Arrays.asList(earlier, history)).getFeedEntity());
+    entities.add(FeedEntity.newBuilder().setId("3").setIsDeleted(true).build());
+
+    TripUpdate.Builder trip = TripUpdate.newBuilder()
+        .setTrip(TripDescriptor.newBuilder().setTripId("t4"));
+    for (int i = 1; i <= 3; i++) {
+      trip.addStopTimeUpdate(StopTimeUpdate.newBuilder()
+          .setStopSequence(i).setStopId("s" + i)
+          .setArrival(StopTimeEvent.newBuilder().setDelay(i * 10))
+          .setDeparture(StopTimeEvent.newBuilder().setTime(1400000000L + i)));
+    }
+    entities.add(FeedEntity.newBuilder().setId("4").setTripUpdate(trip)
+        .build());
+    return entities;
+  }
+
+  private static byte[] bytes(EncodedFeed feed, EncodedFeed.Encoding encoding)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    feed.writeTo(out, encoding);
+    return out.toByteArray();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int n;
+    while ((n = in.read(buf)) > 0) {
+      out.write(buf, 0, n);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * The latest-departure aggregation: the stages it builds, what they select
+ * when run over a collection, and how a $group result decodes. Also which
+ * existing indexes count as serving the queries.
+ *
+ * @author jlynn
+ */
+public class MongoUpdateSourceTest {
+
+  @Test
+  public void testAggregatePipelineStages() {
+    DBObject[] pipeline = MongoUpdateSource.aggregatePipeline(1000L);
+    assertEquals(3, pipeline.length);
+
+    assertEquals(new BasicDBObject("$match", new BasicDBObject("type", 1)
+        .append("time", new BasicDBObject("$gte", 1000L))), pipeline[0]);
+    assertEquals(new BasicDBObject("$sort", new BasicDBObject("device_id", 1)
+        .append("time", -1)), pipeline[1]);
+
+    DBObject group = (DBObject) pipeline[2].get("$group");
+    assertEquals("$device_id", group.get("_id"));
+    for (String field : Update.DB_FIELDS) {
+      assertEquals(new BasicDBObject("$first", "$" + field), group.get(field));
+    }
+    assertEquals(Update.DB_FIELDS.length + 1, group.keySet().size());
+  }
+
+  @Test
+  public void testAggregateKeepsLatestDepartureOfEachBus() {
+    List<DBObject> docs = new ArrayList<DBObject>(Arrays.asList(
+        departure("1", "s1", 1, 2000L),
+        departure("2", "s1", 1, 5000L),
+        departure("1", "s3", 3, 4000L),
+        departure("1", "s2", 2, 3000L),
+        departure("2", "s2", 2, 500L),
+        departure("3", "s1", 1, 900L)));
+    // A location report at a later time must not win.
+    docs.add(departure("1", "s9", 9, 9000L).append("type", 2));
+
+    List<DBObject> groups = PipelineEvaluator.run(
+        MongoUpdateSource.aggregatePipeline(1000L), docs);
+    assertEquals(2, groups.size());
+
+    Update bus1 = new Update(groups.get(0));
+    assertEquals("1", bus1.getId());
+    assertEquals("s3", bus1.getStopId());
+    assertEquals(4000L, bus1.getDepTime());
+
+    Update bus2 = new Update(groups.get(1));
+    assertEquals("2", bus2.getId());
+    assertEquals("s1", bus2.getStopId());
+    assertEquals(5000L, bus2.getDepTime());
+  }
+
+  @Test
+  public void testDecodeGroupResult() {
+    // As returned by the server: the group key in _id, numbers as stored.
+    DBObject group = new BasicDBObject("_id", "bus7")
+        .append("device_id", "bus7")
+        .append("trip_id", "t7")
+        .append("stop_id", "s4")
+        .append("stop_sequence", 4)
+        .append("time", 1400000000000L)
+        .append("delay", 30.0);
+
+    Update update = new Update(group);
+    assertEquals("bus7", update.getId());
+    assertEquals("t7", update.getTripId());
+    assertEquals("s4", update.getStopId());
+    assertEquals(4, update.getStopSequence());
+    assertEquals(1400000000000L, update.getDepTime());
+    assertEquals(30L, update.getDepDelay());
+  }
+
+  @Test
+  public void testIndexPrefixMatchesSameOrReversedDirections() {
+    DBObject wanted = new BasicDBObject("device_id", 1).append("type", 1)
+        .append("time", -1);
+
+    assertTrue(MongoUpdateSource.hasPrefix(new BasicDBObject("device_id", 1)
+        .append("type", 1).append("time", -1), wanted));
+    assertTrue(MongoUpdateSource.hasPrefix(new BasicDBObject("device_id", -1)
+        .append("type", -1).append("time", 1), wanted));
+    assertTrue(MongoUpdateSource.hasPrefix(new BasicDBObject("device_id", 1)
+        .append("type", 1).append("time", -1).append("delay", 1), wanted));
+    assertTrue(MongoUpdateSource.hasPrefix(new BasicDBObject("type", 1.0)
+        .append("time", 1.0), new BasicDBObject("type", 1).append("time", 1)));
+  }
+
+  @Test
+  public void testIndexPrefixRejectsMixedDirectionsAndOtherFields() {
+    DBObject wanted = new BasicDBObject("device_id", 1).append("type", 1)
+        .append("time", -1);
+
+    // Only some directions reversed: cannot serve the sort either way.
+    assertFalse(MongoUpdateSource.hasPrefix(new BasicDBObject("device_id", 1)
+        .append("type", 1).append("time", 1), wanted));
+    assertFalse(MongoUpdateSource.hasPrefix(new BasicDBObject("type", 1)
+        .append("device_id", 1).append("time", -1), wanted));
+    assertFalse(MongoUpdateSource.hasPrefix(new BasicDBObject("device_id", 1)
+        .append("type", 1), wanted));
+    assertFalse(MongoUpdateSource.hasPrefix(new BasicDBObject("device_id", 1)
+        .append("type", 1).append("time", "hashed"), wanted));
+  }
+
+  private static BasicDBObject departure(String bus, String stop,
+      int sequence, long time) {
+    return new BasicDBObject("device_id", bus).append("type", 1)
+        .append("trip_id", "t" + bus).append("stop_id", stop)
+        .append("stop_sequence", sequence).append("time", time)
+        .append("delay", 0L);
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Runs an aggregation pipeline over documents in memory, the way the server
+ * would, for the operators the sources use: $match on equality and
+ * $gt/$gte, $sort on several keys, and $group by a field path with $first
+ * accumulators. Anything else fails the test rather than being ignored.
+ *
+ * @author jlynn
+ */
+public class PipelineEvaluator {
+
+  public static List<DBObject> run(DBObject[] pipeline, List<DBObject> docs) {
+    List<DBObject> out = new ArrayList<DBObject>(docs);
+    for (DBObject stage : pipeline) {
+      if (stage.keySet().size() != 1) {
+        throw new IllegalArgumentException("bad stage: " + stage);
+      }
+      String op = stage.keySet().iterator().next();
+      DBObject arg = (DBObject) stage.get(op);
+      if (op.equals("$match")) {
+        out = match(arg, out);
+      } else if (op.equals("$sort")) {
+        sort(arg, out);
+      } else if (op.equals("$group")) {
+        out = group(arg, out);
+      } else {
+        throw new IllegalArgumentException("unsupported stage: " + op);
+      }
+    }
+    return out;
+  }
+
+  private static List<DBObject> match(DBObject query, List<DBObject> docs) {
+    List<DBObject> out = new ArrayList<DBObject>();
+    for (DBObject doc : docs) {
+      if (matches(query, doc)) {
+        out.add(doc);
+      }
+    }
+    return out;
+  }
+
+  private static boolean matches(DBObject query, DBObject doc) {
+    for (String field : query.keySet()) {
+      Object cond = query.get(field);
+      Object value = doc.get(field);
+      if (cond instanceof DBObject) {
+        DBObject ops = (DBObject) cond;
+        for (String op : ops.keySet()) {
+          if (!(value instanceof Number)) {
+            return false;
+          }
+          long bound = Update.toLong(ops.get(op));
+          long v = Update.toLong(value);
+          if (op.equals("$gte")) {
+            if (v < bound) {
+              return false;
+            }
+          } else if (op.equals("$gt")) {
+            if (v <= bound) {
+              return false;
+            }
+          } else {
+            throw new IllegalArgumentException("unsupported operator: " + op);
+          }
+        }
+      } else if (cond instanceof Number) {
+        if (!(value instanceof Number)
+            || Update.toLong(value) != Update.toLong(cond)) {
+          return false;
+        }
+      } else if (cond == null ? value != null : !cond.equals(value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void sort(final DBObject keys, List<DBObject> docs) {
+    Collections.sort(docs, new Comparator<DBObject>() {
+      @Override
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      public int compare(DBObject a, DBObject b) {
+        for (String field : keys.keySet()) {
+          int direction = ((Number) keys.get(field)).intValue();
+          Comparable x = (Comparable) a.get(field);
+          Comparable y = (Comparable) b.get(field);
+          int c = x instanceof Number && y instanceof Number
+              ? Long.signum(Update.toLong(x) - Update.toLong(y))
+              : x.compareTo(y);
+          if (c != 0) {
+            return direction * c;
+          }
+        }
+        return 0;
+      }
+    });
+  }
+
+  private static List<DBObject> group(DBObject spec, List<DBObject> docs) {
+    Map<Object, DBObject> groups = new LinkedHashMap<Object, DBObject>();
+    for (DBObject doc : docs) {
+      Object id = path(spec.get("_id"), doc);
+      DBObject out = groups.get(id);
+      if (out != null) {
+        continue;
+      }
+      out = new BasicDBObject("_id", id);
+      for (String field : spec.keySet()) {
+        if (field.equals("_id")) {
+          continue;
+        }
+        DBObject acc = (DBObject) spec.get(field);
+        if (!acc.containsField("$first")) {
+          throw new IllegalArgumentException("unsupported accumulator: " + acc);
+        }
+        out.put(field, path(acc.get("$first"), doc));
+      }
+      groups.put(id, out);
+    }
+    return new ArrayList<DBObject>(groups.values());
+  }
+
+  private static Object path(Object expr, DBObject doc) {
+    String path = (String) expr;
+    if (!path.startsWith("$")) {
+      throw new IllegalArgumentException("not a field path: " + path);
+    }
+    return doc.get(path.substring(1));
+  }
+}
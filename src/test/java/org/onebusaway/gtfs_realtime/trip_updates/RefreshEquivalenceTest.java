@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+/**
+ * The aggregation pipeline picks the latest departure of each bus on the
+ * server, while the per-bus queries pick it one bus at a time. Both must
+ * leave the same vehicles in the feed.
+ *
+ * @author jlynn
+ */
+public class RefreshEquivalenceTest {
+
+  private static final int AGE_LIM = 30 * 60 * 1000;
+
+  private long now;
+
+  private FakeUpdateSource aggregateSource;
+
+  private FakeUpdateSource perBusSource;
+
+  private GtfsRealtimeProviderImpl aggregate;
+
+  private GtfsRealtimeProviderImpl perBus;
+
+  @Before
+  public void setUp() {
+    now = System.currentTimeMillis();
+    aggregateSource = new FakeUpdateSource(false);
+    perBusSource = new FakeUpdateSource(true);
+    aggregate = newProvider(aggregateSource);
+    perBus = newProvider(perBusSource);
+  }
+
+  @Test
+  public void testSameFeedFromOutOfOrderAndDuplicateDepartures() throws Exception {
+    // Bus 1 departs three times, newest first and with a duplicate.
+    add(new Update("1", "t1", "s3", 3, now - 60000, 30));
+    add(new Update("1", "t1", "s1", 1, now - 180000, 10));
+    add(new Update("1", "t1", "s3", 3, now - 60000, 30));
+    add(new Update("1", "t1", "s2", 2, now - 120000, 20));
+    // Bus 2 changes trip; its older departure arrives last.
+    add(new Update("2", "t5", "s9", 1, now - 30000, 0));
+    add(new Update("2", "t4", "s8", 7, now - 240000, 90));
+    add(new Update("2", "t5", "s9", 1, now - 30000, 0));
+    // Bus 3 last departed before the age limit and must not appear.
+    add(new Update("3", "t7", "s1", 1, now - 2L * AGE_LIM, 0));
+
+    refreshBoth();
+    Map<String, FeedEntity> entities = assertSameEntities();
+    assertEquals(2, entities.size());
+    assertEquals("s3", entities.get("1").getTripUpdate()
+        .getStopTimeUpdate(0).getStopId());
+    assertEquals("t5", entities.get("2").getTripUpdate().getTrip()
+        .getTripId());
+    assertFalse(entities.containsKey("3"));
+
+    // A later round brings a newer departure for bus 2, a stale replay for
+    // bus 1 and a new bus.
+    add(new Update("2", "t5", "s10", 2, now - 10000, 5));
+    add(new Update("1", "t1", "s1", 1, now - 180000, 10));
+    add(new Update("4", "t9", "s4", 4, now - 20000, 0));
+    add(new Update("2", "t5", "s10", 2, now - 10000, 5));
+
+    refreshBoth();
+    entities = assertSameEntities();
+    assertEquals(3, entities.size());
+    assertEquals("s3", entities.get("1").getTripUpdate()
+        .getStopTimeUpdate(0).getStopId());
+    assertEquals("s10", entities.get("2").getTripUpdate()
+        .getStopTimeUpdate(0).getStopId());
+  }
+
+  private GtfsRealtimeProviderImpl newProvider(UpdateSource source) {
+    GtfsRealtimeProviderImpl provider = new GtfsRealtimeProviderImpl();
+    provider.setUpdateSource(source);
+    provider.setAgeLim(Integer.toString(AGE_LIM));
+    return provider;
+  }
+
+  private void add(Update update) {
+    aggregateSource.add(update);
+    perBusSource.add(update);
+  }
+
+  private void refreshBoth() throws Exception {
+    aggregate.refreshUpdates();
+    perBus.refreshBusList();
+    perBus.refreshUpdates();
+  }
+
+  /**
+   * @return the entities both providers published, by ID.
+   */
+  private Map<String, FeedEntity> assertSameEntities() {
+    Map<String, FeedEntity> expected = entitiesById(aggregate);
+    assertEquals(expected, entitiesById(perBus));
+    assertEquals(aggregate.getSnapshot().getVehicles().keySet(),
+        perBus.getSnapshot().getVehicles().keySet());
+    return expected;
+  }
+
+  private static Map<String, FeedEntity> entitiesById(
+      GtfsRealtimeProviderImpl provider) {
+    Map<String, FeedEntity> entities = new TreeMap<String, FeedEntity>();
+    for (FeedEntity entity : provider.getSnapshot().getFeedMessage()
+        .getEntityList()) {
+      entities.put(entity.getId(), entity);
+    }
+    return entities;
+  }
+}
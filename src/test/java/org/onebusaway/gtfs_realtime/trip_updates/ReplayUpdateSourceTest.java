@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Replay at speed 0: passes follow each other as fast as their recorded span
+ * allows, and polling keeps the buffer of released departures bounded.
+ *
+ * @author jlynn
+ */
+public class ReplayUpdateSourceTest {
+
+  private static final int DEPARTURES = 20;
+
+  private static final long SPACING = 10;
+
+  private static final long SPAN = (DEPARTURES - 1) * SPACING;
+
+  private static final long AGE_LIM = 300;
+
+  private File file;
+
+  private ReplayUpdateSource source;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("replay", ".json");
+    Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      for (int i = 0; i < DEPARTURES; i++) {
+        out.write("{\"device_id\": \"" + i + "\", \"trip_id\": \"t" + i
+            + "\", \"stop_id\": \"s" + i + "\", \"stop_sequence\": 1,"
+            + " \"type\": 1, \"time\": " + (1000000 + i * SPACING)
+            + ", \"delay\": 0}\n");
+      }
+    } finally {
+      out.close();
+    }
+    source = new ReplayUpdateSource();
+    source.setPath(file);
+    source.setSpeed(0);
+    source.open();
+  }
+
+  @After
+  public void tearDown() {
+    source.close();
+    file.delete();
+  }
+
+  @Test
+  public void testBufferStaysBoundedAtSpeedZero() throws Exception {
+    long start = System.currentTimeMillis();
+    int maxBuffered = 0;
+    long maxDep = 0;
+    while (System.currentTimeMillis() - start < 8 * SPAN) {
+      long now = System.currentTimeMillis();
+      List<Update> updates = source.getLatestUpdates(null, now - AGE_LIM);
+      for (Update update : updates) {
+        assertTrue("departure released " + (update.getDepTime() - now)
+            + " ms ahead", update.getDepTime() <= now + 2 * SPAN);
+        maxDep = Math.max(maxDep, update.getDepTime());
+      }
+      maxBuffered = Math.max(maxBuffered, source.getBufferedCount());
+      Thread.sleep(20);
+    }
+
+    assertTrue("fewer than three passes", maxDep > start + 3 * SPAN);
+    // Departures live for AGE_LIM and run at most a pass ahead of the clock.
+    long bound = (AGE_LIM + 2 * SPAN) / SPACING + DEPARTURES;
+    assertTrue("buffered " + maxBuffered, maxBuffered <= bound);
+  }
+}
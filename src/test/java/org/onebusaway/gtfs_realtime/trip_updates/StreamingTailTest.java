@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.trip_updates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Streaming mode: departures handed to the tailUpdates handler are published
+ * once per debounce period, nothing is republished while the source is
+ * quiet, and each tail resumes from the high-water mark less the overlap.
+ *
+ * @author jlynn
+ */
+public class StreamingTailTest {
+
+  private static final long DEBOUNCE = 200;
+
+  private static final long OVERLAP = 5000;
+
+  private FakeUpdateSource source;
+
+  private GtfsRealtimeProviderImpl provider;
+
+  private long now;
+
+  @Before
+  public void setUp() {
+    now = System.currentTimeMillis();
+    source = new FakeUpdateSource(false);
+    provider = new GtfsRealtimeProviderImpl();
+    provider.setUpdateSource(source);
+    provider.setStreaming(true);
+    provider.setPublishDebounce(Long.toString(DEBOUNCE));
+    provider.setOverlap(Long.toString(OVERLAP));
+    provider.setAgeLim(Integer.toString(30 * 60 * 1000));
+    // Long enough that no republish happens just because time passed.
+    provider.setRefreshInterval(3600);
+    provider.start();
+  }
+
+  @After
+  public void tearDown() {
+    provider.stop();
+  }
+
+  @Test
+  public void testBurstIsPublishedOnceAndIdleIsNot() throws Exception {
+    // The first publish tick always publishes.
+    waitForVersion(1);
+    long idle = provider.getSnapshot().getVersion();
+    Thread.sleep(4 * DEBOUNCE);
+    assertEquals(idle, provider.getSnapshot().getVersion());
+
+    List<Update> burst = new ArrayList<Update>();
+    for (int i = 0; i < 50; i++) {
+      burst.add(new Update(Integer.toString(i), "t" + i, "s" + i, 1,
+          now - 60000 + i, 0));
+    }
+    source.offerBatch(burst);
+    waitForVehicles(50);
+    Thread.sleep(4 * DEBOUNCE);
+
+    // The burst may straddle one publish tick, but no more.
+    long published = provider.getSnapshot().getVersion() - idle;
+    assertTrue("published " + published + " times", published >= 1
+        && published <= 2);
+    assertEquals(50, provider.getSnapshot().getFeedMessage().getEntityCount());
+  }
+
+  @Test
+  public void testTailRestartsFromHighWaterMark() throws Exception {
+    long maxDep = now - 10000;
+    source.offerBatch(Arrays.asList(
+        new Update("1", "t1", "s1", 1, now - 20000, 0),
+        new Update("2", "t2", "s2", 1, maxDep, 0)));
+    waitForVehicles(2);
+
+    // Once the batch runs dry the next tail starts from the newest
+    // departure seen, less the overlap.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!source.getTailSince().contains(maxDep - OVERLAP)) {
+      assertTrue("tail never resumed from the high-water mark",
+          System.currentTimeMillis() < deadline);
+      Thread.sleep(20);
+    }
+    List<Long> since = source.getTailSince();
+    assertTrue(since.get(0) < maxDep - OVERLAP);
+
+    // Departures inside the overlap are seen again, older ones are not.
+    source.offerBatch(Arrays.asList(
+        new Update("3", "t3", "s3", 1, maxDep - 2 * OVERLAP, 0),
+        new Update("4", "t4", "s4", 1, maxDep - OVERLAP / 2, 0)));
+    waitForVehicles(3);
+    Thread.sleep(4 * DEBOUNCE);
+    assertEquals(3, provider.getSnapshot().getVehicles().size());
+    assertTrue(provider.getSnapshot().getVehicles().containsKey("4"));
+  }
+
+  private void waitForVersion(long version) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (provider.getSnapshot().getVersion() < version) {
+      assertTrue("no publish", System.currentTimeMillis() < deadline);
+      Thread.sleep(20);
+    }
+  }
+
+  private void waitForVehicles(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (provider.getSnapshot().getVehicles().size() < count) {
+      assertTrue("departures not published",
+          System.currentTimeMillis() < deadline);
+      Thread.sleep(20);
+    }
+  }
+}